@@ -43,6 +43,13 @@ public class NamenodeProcessor extends SimpleChannelInboundHandler<NettyRequest>
     final protected void channelRead0(ChannelHandlerContext ctx, NettyRequest request) throws Exception {
         NettyResponse response = new NettyResponse();
         short error;
+        if(request.getCmd() == NettyRequest.CMD_HELLO) {
+            /* the lower of both versions, and what both sides support */
+            response.setHello(request.getCookie(), Math.min(NettyRequest.PROTOCOL_VERSION, request.getHelloVersion()),
+                    NettyRequest.FEATURES & request.getHelloFeatures());
+            ctx.channel().writeAndFlush(response);
+            return;
+        }
         try {
             response.setTypeAndAllocate(RpcProtocol.responseTypes[request.getCmd()], request.getCookie());
             switch(request.getCmd()) {
@@ -6,15 +6,15 @@ import com.ibm.crail.namenode.rpc.netty.common.ResponseEncoder;
 import com.ibm.crail.rpc.RpcNameNodeService;
 import com.ibm.crail.rpc.RpcServer;
 import com.ibm.crail.storage.netty.CrailNettyUtils;
+import com.ibm.crail.storage.netty.NettyConstants;
+import com.ibm.crail.storage.netty.NettyTransport;
 import com.ibm.crail.utils.CrailUtils;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 
 import java.net.InetSocketAddress;
@@ -35,13 +35,15 @@ public class NettyNamenodeServer extends RpcServer {
         InetSocketAddress inetSocketAddress = CrailUtils.getNameNodeAddress();
         LOG.info("Starting the NettyNamenode service at : " + inetSocketAddress);
         /* start the netty server */
-        EventLoopGroup acceptGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        NettyTransport transport = NettyTransport.select();
+        LOG.info("NettyNamenode transport : " + transport);
+        EventLoopGroup acceptGroup = transport.newEventLoopGroup();
+        EventLoopGroup workerGroup = transport.newEventLoopGroup();
         try {
             ServerBootstrap boot = new ServerBootstrap();
             boot.group(acceptGroup, workerGroup);
             /* we use sockets */
-            boot.channel(NioServerSocketChannel.class);
+            boot.channel(transport.serverSocketChannel());
             /* for new incoming connection */
             boot.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
@@ -57,6 +59,7 @@ public class NettyNamenodeServer extends RpcServer {
             /* general optimization settings */
             boot.option(ChannelOption.SO_BACKLOG, 1024);
             boot.childOption(ChannelOption.SO_KEEPALIVE, true);
+            transport.configure(boot);
 
             /* now we bind the server and start */
             ChannelFuture f = boot.bind(inetSocketAddress.getAddress(),
@@ -73,7 +76,8 @@ public class NettyNamenodeServer extends RpcServer {
     }
 
     public void init(CrailConfiguration crailConfiguration, String[] strings) throws Exception {
-        /* for now these are no-ops */
+        /* only the transport settings are shared with the storage side */
+        NettyConstants.get().initCommon(crailConfiguration);
     }
 
     public void printConf(Logger logger) {
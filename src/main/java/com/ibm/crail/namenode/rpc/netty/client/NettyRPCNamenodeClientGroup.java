@@ -26,14 +26,14 @@ import com.ibm.crail.namenode.rpc.netty.common.NettyResponse;
 import com.ibm.crail.namenode.rpc.netty.common.RequestEncoder;
 import com.ibm.crail.namenode.rpc.netty.common.ResponseDecoder;
 import com.ibm.crail.storage.netty.CrailNettyUtils;
+import com.ibm.crail.storage.netty.NettyTransport;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import org.slf4j.Logger;
 
 import java.net.InetSocketAddress;
@@ -52,11 +52,13 @@ public class NettyRPCNamenodeClientGroup {
     private ArrayList<NettyRPCNamenodeConnection> activeClients;
 
     NettyRPCNamenodeClientGroup(){
-        workerGroup = new NioEventLoopGroup();
+        NettyTransport transport = NettyTransport.select();
+        workerGroup = transport.newEventLoopGroup();
         boot = new Bootstrap();
         boot.group(workerGroup);
-        boot.channel(NioSocketChannel.class);
+        boot.channel(transport.socketChannel());
         boot.option(ChannelOption.SO_KEEPALIVE, true);
+        transport.configure(boot);
         final NettyRPCNamenodeClientGroup thisGroup = this;
         boot.handler(new ChannelInitializer<SocketChannel>() {
             @Override
@@ -102,16 +104,19 @@ public class NettyRPCNamenodeClientGroup {
         return inFlightOps.remove(slot);
     }
 
-    NettyRPCNamenodeConnection getClient(InetSocketAddress inetSocketAddress) {
-        Channel clientChannel = null;
-        try {
-            clientChannel = boot.connect(inetSocketAddress.getAddress(),
-                inetSocketAddress.getPort()).sync().channel();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        LOG.info("Connected to the Netty Namenode at : " + inetSocketAddress);
-        NettyRPCNamenodeConnection ep = new NettyRPCNamenodeConnection(clientChannel, this);
+    NettyRPCNamenodeConnection getClient(final InetSocketAddress inetSocketAddress) {
+        /* does not wait for the handshake, the connection queues requests until it is up */
+        ChannelFuture connectFuture = boot.connect(inetSocketAddress.getAddress(),
+                inetSocketAddress.getPort()).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(future.isSuccess()) {
+                    LOG.info("Connected to the Netty Namenode at : " + inetSocketAddress);
+                } else {
+                    LOG.error("Connecting to the Netty Namenode at " + inetSocketAddress + " failed: " + future.cause());
+                }
+            }
+        });
+        NettyRPCNamenodeConnection ep = new NettyRPCNamenodeConnection(connectFuture, this);
         activeClients.add(ep);
         return ep;
     }
@@ -27,12 +27,15 @@ import com.ibm.crail.metadata.BlockInfo;
 import com.ibm.crail.metadata.DataNodeInfo;
 import com.ibm.crail.metadata.FileInfo;
 import com.ibm.crail.metadata.FileName;
+import com.ibm.crail.namenode.rpc.netty.common.NettyHelloFuture;
 import com.ibm.crail.namenode.rpc.netty.common.NettyRequest;
 import com.ibm.crail.namenode.rpc.netty.common.NettyResponse;
 import com.ibm.crail.namenode.rpc.netty.common.NettyResponseFuture;
 import com.ibm.crail.rpc.*;
 import com.ibm.crail.storage.netty.CrailNettyUtils;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -40,11 +43,44 @@ import java.io.IOException;
 public class NettyRPCNamenodeConnection implements RpcConnection {
     static private final Logger LOG = CrailNettyUtils.getLogger();
     private Channel clientChannel;
+    private ChannelFuture connected;
     private NettyRPCNamenodeClientGroup group;
+    /* version and features agreed with the namenode, legacy until it has answered */
+    private NettyHelloFuture hello;
 
-    public NettyRPCNamenodeConnection(Channel clientChannel, NettyRPCNamenodeClientGroup grp){
-        this.clientChannel = clientChannel;
+    public NettyRPCNamenodeConnection(ChannelFuture connectFuture, NettyRPCNamenodeClientGroup grp){
+        this.connected = connectFuture;
+        this.clientChannel = connectFuture.channel();
         this.group = grp;
+        /* the first request on the connection. Nothing optional depends on it yet, so the
+         * requests behind it are not held back */
+        long cookie = this.group.getNextSlot();
+        this.hello = new NettyHelloFuture();
+        this.group.insertNewInflight(cookie, new NettyResponse(this.hello, cookie));
+        send(new NettyRequest(NettyRequest.PROTOCOL_VERSION, NettyRequest.FEATURES, cookie), cookie);
+    }
+
+    final public NettyHelloFuture getHello(){
+        return this.hello;
+    }
+
+    /* requests issued during the handshake go out once the channel is up. Always through a listener, even
+     * when connected, listeners run on the event loop in the order they were added, so no request overtakes
+     * one that is still waiting for the connection */
+    private void send(final NettyRequest request, final long cookie){
+        connected.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(future.isSuccess()) {
+                    clientChannel.writeAndFlush(request);
+                } else {
+                    NettyResponse resp = group.retriveAndRemove(cookie);
+                    if(resp != null) {
+                        resp.getNettyCommonFuture().markFailed(new IOException("Connecting to the namenode failed",
+                                future.cause()));
+                    }
+                }
+            }
+        });
     }
 
     final public String toString(){
@@ -70,7 +106,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -86,7 +122,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -102,7 +138,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -118,7 +154,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -134,7 +170,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -150,7 +186,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -166,7 +202,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -182,7 +218,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -198,7 +234,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -214,7 +250,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 
@@ -230,7 +266,7 @@ public class NettyRPCNamenodeConnection implements RpcConnection {
         /* respF goes into the map */
         this.group.insertNewInflight(cookie, new NettyResponse(resp, cookie, resultF));
         /* now we construct and push out the request */
-        this.clientChannel.writeAndFlush(new NettyRequest(req, cookie));
+        send(new NettyRequest(req, cookie), cookie);
         return resultF;
     }
 }
\ No newline at end of file
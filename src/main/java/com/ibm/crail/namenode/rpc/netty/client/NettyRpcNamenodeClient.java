@@ -3,6 +3,7 @@ package com.ibm.crail.namenode.rpc.netty.client;
 import com.ibm.crail.conf.CrailConfiguration;
 import com.ibm.crail.rpc.RpcClient;
 import com.ibm.crail.rpc.RpcConnection;
+import com.ibm.crail.storage.netty.NettyConstants;
 import org.slf4j.Logger;
 
 import java.net.InetSocketAddress;
@@ -30,6 +31,7 @@ public class NettyRpcNamenodeClient implements RpcClient {
 
     public void init(CrailConfiguration crailConfiguration, String[] strings) throws Exception {
         /* here we init it */
+        NettyConstants.get().initCommon(crailConfiguration);
         this.clientGroup = new NettyRPCNamenodeClientGroup();
     }
 
@@ -24,4 +24,7 @@ package com.ibm.crail.namenode.rpc.netty.common;
 
 public abstract class NettyCommonFuture {
     abstract void markDone();
+
+    /* the request never made it to the namenode */
+    public abstract void markFailed(Throwable cause);
 }
@@ -0,0 +1,71 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.namenode.rpc.netty.common;
+
+import com.ibm.crail.storage.netty.CompletionSignal;
+
+/**
+ * The outcome of the handshake on a namenode connection. Until the namenode has answered,
+ * and for namenodes that do not know the handshake, the connection speaks the legacy version.
+ */
+public class NettyHelloFuture extends NettyCommonFuture {
+    private final CompletionSignal done;
+    private volatile int version;
+    private volatile long features;
+
+    public NettyHelloFuture(){
+        this.done = new CompletionSignal();
+        this.version = NettyRequest.LEGACY_VERSION;
+        this.features = 0;
+    }
+
+    final void agree(int version, long features){
+        this.version = version;
+        this.features = features;
+    }
+
+    final public void markDone() {
+        this.done.signal();
+    }
+
+    /* the hello never made it, the connection is gone anyway */
+    final public void markFailed(Throwable cause) {
+        this.done.signal();
+    }
+
+    final public boolean isDone() {
+        return this.done.isDone();
+    }
+
+    final public int getVersion() {
+        return this.version;
+    }
+
+    final public boolean has(long feature) {
+        return (this.features & feature) != 0;
+    }
+
+    final public String toString(){
+        return "version: " + this.version + " features: " + this.features + " done " + isDone();
+    }
+}
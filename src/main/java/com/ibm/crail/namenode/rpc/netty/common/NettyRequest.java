@@ -34,6 +34,14 @@ public class NettyRequest {
     public static final int headerSize = Short.BYTES + Short.BYTES + Long.BYTES;
     public static final int CSIZE = headerSize +
             Math.max(RpcRequestMessage.SetFileReq.CSIZE, RpcRequestMessage.RenameFileReq.CSIZE);
+    /* not an RpcProtocol command, namenodes without the handshake answer it with ERR_INVALID_RPC_CMD */
+    public static final short CMD_HELLO = 0;
+    public static final short REQ_HELLO = 0;
+    /* version 1 is the framing as it was before the handshake */
+    public static final int PROTOCOL_VERSION = 2;
+    public static final int LEGACY_VERSION = 1;
+    /* nothing optional on namenode connections yet, the bitmap is there for what comes */
+    public static final long FEATURES = 0;
 
     private short cmd;
     private short type;
@@ -50,6 +58,8 @@ public class NettyRequest {
     private RpcRequestMessage.GetDataNodeReq getDataNodeReq;
     private RpcRequestMessage.DumpNameNodeReq dumpNameNodeReq;
     private RpcRequestMessage.PingNameNodeReq pingNameNodeReq;
+    private int helloVersion;
+    private long helloFeatures;
 
     private ByteBuffer nioBuffer;
 
@@ -149,6 +159,15 @@ public class NettyRequest {
         this.cmd = RpcProtocol.CMD_PING_NAMENODE;
     }
 
+    public NettyRequest(int version, long features, long cookie) {
+        this();
+        this.cookie = cookie;
+        this.type = REQ_HELLO;
+        this.helloVersion = version;
+        this.helloFeatures = features;
+        this.cmd = CMD_HELLO;
+    }
+
     public long getCookie(){
         return cookie;
     }
@@ -161,6 +180,11 @@ public class NettyRequest {
 
         nioBuffer.clear();
         switch (type) {
+            case REQ_HELLO:
+                nioBuffer.putInt(helloVersion);
+                nioBuffer.putLong(helloFeatures);
+                written += Integer.BYTES + Long.BYTES;
+                break;
             case RpcProtocol.REQ_CREATE_FILE:
                 written += createFileReq.write(nioBuffer);
                 break;
@@ -212,6 +236,10 @@ public class NettyRequest {
         nioBuffer.flip();
 
         switch (type) {
+            case REQ_HELLO:
+                this.helloVersion = nioBuffer.getInt();
+                this.helloFeatures = nioBuffer.getLong();
+                break;
             case RpcProtocol.REQ_CREATE_FILE:
                 this.createFileReq = new RpcRequestMessage.CreateFileReq();
                 createFileReq.update(nioBuffer);
@@ -267,6 +295,14 @@ public class NettyRequest {
         return type;
     }
 
+    public int getHelloVersion() {
+        return helloVersion;
+    }
+
+    public long getHelloFeatures() {
+        return helloFeatures;
+    }
+
     public RpcRequestMessage.CreateFileReq createFile() {
         return this.createFileReq;
     }
@@ -35,6 +35,8 @@ public class NettyResponse implements RpcNameNodeState {
     public static final int headerSize = Short.BYTES + Short.BYTES + Long.BYTES;
     public static final int CSIZE = headerSize +
             Math.max(RpcResponseMessage.GetBlockRes.CSIZE, RpcResponseMessage.RenameRes.CSIZE);
+    /* the answer to NettyRequest.CMD_HELLO, older namenodes send it back as an error */
+    public static final short RES_HELLO = 0;
 
     private short type;
     private short error;
@@ -48,6 +50,9 @@ public class NettyResponse implements RpcNameNodeState {
     private RpcResponseMessage.GetLocationRes getLocationRes;
     private RpcResponseMessage.GetDataNodeRes getDataNodeRes;
     private RpcResponseMessage.PingNameNodeRes pingNameNodeRes;
+    private int helloVersion;
+    private long helloFeatures;
+    private NettyHelloFuture hello;
     private ByteBuffer nioBuffer;
     private NettyCommonFuture resp;
 
@@ -114,6 +119,20 @@ public class NettyResponse implements RpcNameNodeState {
         this.pingNameNodeRes = message;
     }
 
+    public NettyResponse(NettyHelloFuture hello, long cookie) {
+        this(RES_HELLO, cookie, hello);
+        this.hello = hello;
+    }
+
+    /* the namenode side of the handshake, what both sides have agreed on */
+    public void setHello(long cookie, int version, long features) {
+        this.type = RES_HELLO;
+        this.cookie = cookie;
+        this.error = 0;
+        this.helloVersion = version;
+        this.helloFeatures = features;
+    }
+
     public void setTypeAndAllocate(short type, long cookie) throws Exception {
         this.type = type;
         this.cookie = cookie;
@@ -163,6 +182,11 @@ public class NettyResponse implements RpcNameNodeState {
         int written = headerSize;
         nioBuffer.clear();
         switch(type){
+            case RES_HELLO:
+                nioBuffer.putInt(helloVersion);
+                nioBuffer.putLong(helloFeatures);
+                written += Integer.BYTES + Long.BYTES;
+                break;
             case RpcProtocol.RES_VOID:
                 written += voidRes.write(nioBuffer);
                 break;
@@ -205,6 +229,13 @@ public class NettyResponse implements RpcNameNodeState {
         nioBuffer.clear();
         buffer.readBytes(nioBuffer);
         nioBuffer.flip();
+        if(hello != null) {
+            /* an error, of whatever type, means the namenode does not know the handshake */
+            if(type == RES_HELLO && error == 0) {
+                this.hello.agree(nioBuffer.getInt(), nioBuffer.getLong());
+            }
+            return;
+        }
         switch(type){
             case RpcProtocol.RES_VOID:
                 //this.voidRes = new RpcResponseMessage.VoidRes();
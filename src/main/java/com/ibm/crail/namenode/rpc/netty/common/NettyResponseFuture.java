@@ -23,6 +23,7 @@
 package com.ibm.crail.namenode.rpc.netty.common;
 
 import com.ibm.crail.rpc.RpcFuture;
+import com.ibm.crail.storage.netty.CompletionSignal;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -32,19 +33,22 @@ public class NettyResponseFuture<T> extends NettyCommonFuture implements RpcFutu
     private T result;
     private String debug;
     private boolean prefetch;
-    private boolean done;
+    private final CompletionSignal done;
+    private Throwable failure;
 
     public NettyResponseFuture(String name, T result){
         this.debug = name;
         this.result = result;
-        this.done = false;
+        this.done = new CompletionSignal();
     }
 
     final public void markDone() {
-        synchronized (this) {
-            this.done = true;
-            this.notifyAll();
-        }
+        this.done.signal();
+    }
+
+    final public void markFailed(Throwable cause) {
+        this.failure = cause;
+        this.done.signal();
     }
 
     final public int getTicket() {
@@ -68,33 +72,25 @@ public class NettyResponseFuture<T> extends NettyCommonFuture implements RpcFutu
     }
 
     final public boolean isDone() {
-        return this.done;
+        return this.done.isDone();
     }
 
     final public T get() throws InterruptedException, ExecutionException {
-        /* otherwise we wait */
-        synchronized (this) {
-            if (!isDone()) {
-                // then we have to block until finished is marked set
-                this.wait();
-            }
-        }
-        if(!isDone())
+        /* spins for a while, then blocks until finished is marked set */
+        if(!this.done.await(-1))
             throw new InterruptedException("RPC was interrupted of kind : "  + debug);
+        if(failure != null)
+            throw new ExecutionException(failure);
 
         return result;
     }
 
     final public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
         /* otherwise we wait */
-        synchronized (this) {
-            if (!isDone()) {
-                // then we have to block until finished is marked set
-                this.wait(unit.toMillis(timeout));
-            }
-        }
-        if(!isDone())
+        if(!this.done.await(unit.toNanos(timeout)))
             throw new TimeoutException("RPC timeout happened for " + debug);
+        if(failure != null)
+            throw new ExecutionException(failure);
 
         return result;
     }
@@ -0,0 +1,144 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One-shot completion flag for the futures handed out to the application. A waiter first
+ * busy-spins for the configured budget (crail.storage.netty.spinbudget) and then parks. The
+ * completing thread, usually an event loop, does not take any monitor and only pays for an
+ * unpark if somebody has actually parked. The rare further waiters on the same signal wait on
+ * its monitor, which the completing thread only takes if there are any.
+ */
+public class CompletionSignal {
+    private static final AtomicReferenceFieldUpdater<CompletionSignal, Thread> WAITER =
+            AtomicReferenceFieldUpdater.newUpdater(CompletionSignal.class, Thread.class, "waiter");
+    /* set once at init from NettyConstants, in nanoseconds */
+    private static volatile long spinBudget = 0;
+
+    private volatile boolean done;
+    private volatile Thread waiter;
+    /* waiters beyond the first, waiting on the monitor */
+    private volatile int others;
+
+    public CompletionSignal(){
+        this.done = false;
+        this.waiter = null;
+        this.others = 0;
+    }
+
+    public static void setSpinBudget(long nanos) {
+        spinBudget = nanos;
+    }
+
+    final public boolean isDone() {
+        return done;
+    }
+
+    final public void signal() {
+        done = true;
+        /* done is written before the waiter is read, and the waiter does it the other way around */
+        Thread w = waiter;
+        if(w != null) {
+            LockSupport.unpark(w);
+        }
+        /* the same goes for others, which is written before they read done */
+        if(others > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for the signal.
+     *
+     * @param timeoutNanos How long to wait at most, a negative value waits forever.
+     *
+     * @return true if signaled, false on timeout
+     */
+    final public boolean await(long timeoutNanos) throws InterruptedException {
+        if(done) {
+            return true;
+        }
+        final boolean timed = timeoutNanos >= 0;
+        final long start = System.nanoTime();
+        long spin = spinBudget;
+        if(timed && spin > timeoutNanos) {
+            spin = timeoutNanos;
+        }
+        while (!done && System.nanoTime() - start < spin) {
+            /* busy spin, trading a core for latency */
+        }
+        if(done) {
+            return true;
+        }
+        Thread me = Thread.currentThread();
+        /* only one waiter can be unparked, if somebody else already is that one we wait on the monitor */
+        if(!WAITER.compareAndSet(this, null, me)) {
+            return awaitOther(timed, start, timeoutNanos);
+        }
+        try {
+            while (!done) {
+                if(Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while waiting for completion");
+                }
+                if(timed) {
+                    long left = timeoutNanos - (System.nanoTime() - start);
+                    if(left <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, left);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            return true;
+        } finally {
+            WAITER.compareAndSet(this, me, null);
+        }
+    }
+
+    private synchronized boolean awaitOther(boolean timed, long start, long timeoutNanos) throws InterruptedException {
+        others++;
+        try {
+            while (!done) {
+                if(timed) {
+                    long left = timeoutNanos - (System.nanoTime() - start);
+                    if(left <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } else {
+                    wait();
+                }
+            }
+            return true;
+        } finally {
+            others--;
+        }
+    }
+}
@@ -23,13 +23,16 @@
 package com.ibm.crail.storage.netty;
 
 import com.ibm.crail.conf.CrailConfiguration;
+import com.ibm.crail.storage.netty.rpc.Crc32c;
 import org.apache.commons.cli.*;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class NettyConstants {
@@ -47,6 +50,93 @@ public class NettyConstants {
 
     private String STORAGENODE_NETTY_PORT_KEY = "crail.storage.netty.port";
     private int STORAGENODE_NETTY_PORT = 19862;
+
+    private String STORAGENODE_NETTY_TRANSPORT_KEY = "crail.storage.netty.transport";
+    private String STORAGENODE_NETTY_TRANSPORT = "nio";
+
+    private String STORAGENODE_NETTY_EPOLL_CORK_KEY = "crail.storage.netty.epoll.cork";
+    private boolean STORAGENODE_NETTY_EPOLL_CORK = false;
+
+    private String STORAGENODE_NETTY_EPOLL_EDGE_KEY = "crail.storage.netty.epoll.edgetriggered";
+    private boolean STORAGENODE_NETTY_EPOLL_EDGE = true;
+
+    private String STORAGENODE_NETTY_QUEUE_DEPTH_KEY = "crail.storage.netty.queuedepth";
+    private int STORAGENODE_NETTY_QUEUE_DEPTH = 1024;
+
+    private String STORAGENODE_NETTY_SPIN_BUDGET_KEY = "crail.storage.netty.spinbudget";
+    private long STORAGENODE_NETTY_SPIN_BUDGET = 0;
+
+    private String STORAGENODE_NETTY_IO_TIMEOUT_KEY = "crail.storage.netty.iotimeout";
+    private long STORAGENODE_NETTY_IO_TIMEOUT = 0;
+
+    private String STORAGENODE_NETTY_CONNECTIONS_KEY = "crail.storage.netty.connections";
+    private int STORAGENODE_NETTY_CONNECTIONS = 1;
+
+    private String STORAGENODE_NETTY_STRIPE_KEY = "crail.storage.netty.stripe";
+    private String STORAGENODE_NETTY_STRIPE = "leastbytes";
+
+    private String STORAGENODE_NETTY_IDLE_TIMEOUT_KEY = "crail.storage.netty.idletimeout";
+    private long STORAGENODE_NETTY_IDLE_TIMEOUT = 60000;
+
+    private String STORAGENODE_NETTY_HANDSHAKE_TIMEOUT_KEY = "crail.storage.netty.handshake.timeout";
+    private long STORAGENODE_NETTY_HANDSHAKE_TIMEOUT = 1000;
+
+    private String STORAGENODE_NETTY_STREAM_CHUNK_KEY = "crail.storage.netty.streamchunk";
+    private int STORAGENODE_NETTY_STREAM_CHUNK = 1048576;
+
+    private String STORAGENODE_NETTY_WATERMARK_HIGH_KEY = "crail.storage.netty.watermark.high";
+    private int STORAGENODE_NETTY_WATERMARK_HIGH = 8388608;
+
+    private String STORAGENODE_NETTY_WATERMARK_LOW_KEY = "crail.storage.netty.watermark.low";
+    private int STORAGENODE_NETTY_WATERMARK_LOW = 4194304;
+
+    private String STORAGENODE_NETTY_BACKPRESSURE_KEY = "crail.storage.netty.backpressure";
+    private String STORAGENODE_NETTY_BACKPRESSURE = "block";
+
+    private String STORAGENODE_NETTY_BACKEND_KEY = "crail.storage.netty.backend";
+    private String STORAGENODE_NETTY_BACKEND = "memory";
+
+    private String STORAGENODE_NETTY_BACKEND_FILE_KEY = "crail.storage.netty.backend.file";
+    private String STORAGENODE_NETTY_BACKEND_FILE = "/dev/shm/crail-netty.data";
+
+    private String STORAGENODE_NETTY_PROVISIONING_KEY = "crail.storage.netty.provisioning";
+    private String STORAGENODE_NETTY_PROVISIONING = "lazy";
+
+    private String STORAGENODE_NETTY_PREFAULT_THREADS_KEY = "crail.storage.netty.prefault.threads";
+    private int STORAGENODE_NETTY_PREFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private String STORAGENODE_NETTY_OFFLOAD_THREADS_KEY = "crail.storage.netty.offload.threads";
+    private int STORAGENODE_NETTY_OFFLOAD_THREADS = 0;
+
+    private String STORAGENODE_NETTY_OFFLOAD_THRESHOLD_KEY = "crail.storage.netty.offload.threshold";
+    private int STORAGENODE_NETTY_OFFLOAD_THRESHOLD = 1048576;
+
+    private String STORAGENODE_NETTY_COMPRESSION_KEY = "crail.storage.netty.compression";
+    private String STORAGENODE_NETTY_COMPRESSION = "none";
+
+    private String STORAGENODE_NETTY_COMPRESSION_THRESHOLD_KEY = "crail.storage.netty.compression.threshold";
+    private int STORAGENODE_NETTY_COMPRESSION_THRESHOLD = 65536;
+
+    private String STORAGENODE_NETTY_CHECKSUM_KEY = "crail.storage.netty.checksum";
+    private boolean STORAGENODE_NETTY_CHECKSUM = false;
+
+    private String STORAGENODE_NETTY_HEADER_KEY = "crail.storage.netty.header";
+    private String STORAGENODE_NETTY_HEADER = "fixed";
+
+    private String STORAGENODE_NETTY_WRITEBEHIND_KEY = "crail.storage.netty.writebehind";
+    private int STORAGENODE_NETTY_WRITEBEHIND = 0;
+
+    private String STORAGENODE_NETTY_WRITEBEHIND_DEADLINE_KEY = "crail.storage.netty.writebehind.deadline";
+    private long STORAGENODE_NETTY_WRITEBEHIND_DEADLINE = 1;
+
+    private String STORAGENODE_NETTY_READAHEAD_KEY = "crail.storage.netty.readahead";
+    private long STORAGENODE_NETTY_READAHEAD = 0;
+
+    private String STORAGENODE_NETTY_READAHEAD_WINDOW_KEY = "crail.storage.netty.readahead.window";
+    private int STORAGENODE_NETTY_READAHEAD_WINDOW = 8;
+
+    private String STORAGENODE_NETTY_PREWARM_KEY = "crail.storage.netty.prewarm";
+    private List<InetSocketAddress> STORAGENODE_NETTY_PREWARM = new ArrayList<InetSocketAddress>();
     private Options options;
 
     private static NettyConstants _conf = null;
@@ -90,6 +180,34 @@ public class NettyConstants {
         sb.append(new String(" [NETTY]  address   : " + STORAGENODE_NETTY_ADDRESS + " \n"));
         sb.append(new String(" [NETTY]  limit     : " + STORAGENODE_NETTY_STORAGE_LIMIT + " \n"));
         sb.append(new String(" [NETTY]  allocSize : " + STORAGENODE_NETTY_ALLOCATION_SIZE + " \n"));
+        sb.append(new String(" [NETTY]  transport : " + STORAGENODE_NETTY_TRANSPORT +
+                " (cork: " + STORAGENODE_NETTY_EPOLL_CORK + ", edge: " + STORAGENODE_NETTY_EPOLL_EDGE + ") \n"));
+        sb.append(new String(" [NETTY]  queueDepth: " + STORAGENODE_NETTY_QUEUE_DEPTH + " \n"));
+        sb.append(new String(" [NETTY]  spinBudget: " + STORAGENODE_NETTY_SPIN_BUDGET + " ns \n"));
+        sb.append(new String(" [NETTY]  ioTimeout : " + STORAGENODE_NETTY_IO_TIMEOUT + " ms \n"));
+        sb.append(new String(" [NETTY]  connections: " + STORAGENODE_NETTY_CONNECTIONS + " \n"));
+        sb.append(new String(" [NETTY]  stripe    : " + STORAGENODE_NETTY_STRIPE + " \n"));
+        sb.append(new String(" [NETTY]  idleTimeout: " + STORAGENODE_NETTY_IDLE_TIMEOUT + " ms \n"));
+        sb.append(new String(" [NETTY]  handshakeTimeout: " + STORAGENODE_NETTY_HANDSHAKE_TIMEOUT + " ms \n"));
+        sb.append(new String(" [NETTY]  streamChunk: " + STORAGENODE_NETTY_STREAM_CHUNK + " \n"));
+        sb.append(new String(" [NETTY]  watermarks: " + STORAGENODE_NETTY_WATERMARK_LOW + " - " + STORAGENODE_NETTY_WATERMARK_HIGH + " \n"));
+        sb.append(new String(" [NETTY]  backpressure: " + STORAGENODE_NETTY_BACKPRESSURE + " \n"));
+        sb.append(new String(" [NETTY]  backend   : " + STORAGENODE_NETTY_BACKEND +
+                (isFileBackend() ? " (" + STORAGENODE_NETTY_BACKEND_FILE + ")" : "") + " \n"));
+        sb.append(new String(" [NETTY]  provisioning: " + STORAGENODE_NETTY_PROVISIONING + " (" +
+                STORAGENODE_NETTY_PREFAULT_THREADS + " threads) \n"));
+        sb.append(new String(" [NETTY]  offload   : " + STORAGENODE_NETTY_OFFLOAD_THREADS + " threads, from " +
+                STORAGENODE_NETTY_OFFLOAD_THRESHOLD + " bytes \n"));
+        sb.append(new String(" [NETTY]  compression: " + STORAGENODE_NETTY_COMPRESSION + ", from " +
+                STORAGENODE_NETTY_COMPRESSION_THRESHOLD + " bytes \n"));
+        sb.append(new String(" [NETTY]  checksum  : " + STORAGENODE_NETTY_CHECKSUM +
+                (STORAGENODE_NETTY_CHECKSUM ? " (" + Crc32c.implementation() + ")" : "") + " \n"));
+        sb.append(new String(" [NETTY]  header    : " + STORAGENODE_NETTY_HEADER + " \n"));
+        sb.append(new String(" [NETTY]  writeBehind: " + STORAGENODE_NETTY_WRITEBEHIND + " bytes, deadline " +
+                STORAGENODE_NETTY_WRITEBEHIND_DEADLINE + " ms \n"));
+        sb.append(new String(" [NETTY]  readAhead : " + STORAGENODE_NETTY_READAHEAD + " bytes, up to " +
+                STORAGENODE_NETTY_READAHEAD_WINDOW + " ranges \n"));
+        sb.append(new String(" [NETTY]  prewarm   : " + STORAGENODE_NETTY_PREWARM.size() + " StorageNodes \n"));
         return sb.toString();
     }
 
@@ -101,6 +219,122 @@ public class NettyConstants {
         return this.STORAGENODE_NETTY_ALLOCATION_SIZE;
     }
 
+    public boolean isEpollTransport() {
+        return "epoll".equalsIgnoreCase(this.STORAGENODE_NETTY_TRANSPORT);
+    }
+
+    public boolean isEpollCork() {
+        return this.STORAGENODE_NETTY_EPOLL_CORK;
+    }
+
+    public boolean isEpollEdgeTriggered() {
+        return this.STORAGENODE_NETTY_EPOLL_EDGE;
+    }
+
+    public int getQueueDepth() {
+        return this.STORAGENODE_NETTY_QUEUE_DEPTH;
+    }
+
+    public long getSpinBudget() {
+        return this.STORAGENODE_NETTY_SPIN_BUDGET;
+    }
+
+    public long getIOTimeout() {
+        return this.STORAGENODE_NETTY_IO_TIMEOUT;
+    }
+
+    public int getConnections() {
+        return this.STORAGENODE_NETTY_CONNECTIONS;
+    }
+
+    public boolean isStripeRoundRobin() {
+        return this.STORAGENODE_NETTY_STRIPE.equalsIgnoreCase("roundrobin");
+    }
+
+    public long getIdleTimeout() {
+        return this.STORAGENODE_NETTY_IDLE_TIMEOUT;
+    }
+
+    public long getHandshakeTimeout() {
+        return this.STORAGENODE_NETTY_HANDSHAKE_TIMEOUT;
+    }
+
+    public int getStreamChunk() {
+        return this.STORAGENODE_NETTY_STREAM_CHUNK;
+    }
+
+    public int getWatermarkHigh() {
+        return this.STORAGENODE_NETTY_WATERMARK_HIGH;
+    }
+
+    public int getWatermarkLow() {
+        return this.STORAGENODE_NETTY_WATERMARK_LOW;
+    }
+
+    public boolean isBackpressureReject() {
+        return this.STORAGENODE_NETTY_BACKPRESSURE.equalsIgnoreCase("reject");
+    }
+
+    public boolean isFileBackend() {
+        return this.STORAGENODE_NETTY_BACKEND.equalsIgnoreCase("file");
+    }
+
+    public String getBackendFile() {
+        return this.STORAGENODE_NETTY_BACKEND_FILE;
+    }
+
+    public String getProvisioning() {
+        return this.STORAGENODE_NETTY_PROVISIONING;
+    }
+
+    public int getPrefaultThreads() {
+        return this.STORAGENODE_NETTY_PREFAULT_THREADS;
+    }
+
+    public int getOffloadThreads() {
+        return this.STORAGENODE_NETTY_OFFLOAD_THREADS;
+    }
+
+    public int getOffloadThreshold() {
+        return this.STORAGENODE_NETTY_OFFLOAD_THRESHOLD;
+    }
+
+    public boolean isCompressionEnabled() {
+        return STORAGENODE_NETTY_COMPRESSION.equalsIgnoreCase("snappy");
+    }
+
+    public int getCompressionThreshold() {
+        return STORAGENODE_NETTY_COMPRESSION_THRESHOLD;
+    }
+
+    public boolean isChecksumEnabled() {
+        return STORAGENODE_NETTY_CHECKSUM;
+    }
+
+    public boolean isCompactHeader() {
+        return STORAGENODE_NETTY_HEADER.equalsIgnoreCase("compact");
+    }
+
+    public int getWriteBehind() {
+        return STORAGENODE_NETTY_WRITEBEHIND;
+    }
+
+    public long getWriteBehindDeadline() {
+        return STORAGENODE_NETTY_WRITEBEHIND_DEADLINE;
+    }
+
+    public long getReadAhead() {
+        return STORAGENODE_NETTY_READAHEAD;
+    }
+
+    public int getReadAheadWindow() {
+        return STORAGENODE_NETTY_READAHEAD_WINDOW;
+    }
+
+    public List<InetSocketAddress> getPrewarmAddresses() {
+        return this.STORAGENODE_NETTY_PREWARM;
+    }
+
     public InetSocketAddress getNettyDataNodeAddress() throws Exception {
         if(null == STORAGENODE_NETTY_ADDRESS) {
             InetAddress addr = InetAddress.getByName(_ipaddress);
@@ -129,6 +363,182 @@ public class NettyConstants {
         }
     }
 
+    /**
+     * Parses the parameters that are shared between the storage server, the storage client
+     * and the namenode RPC. Safe to be called multiple times.
+     *
+     * @param conf The crail configuration to read from.
+     */
+    public void initCommon(CrailConfiguration conf) throws Exception {
+        if (conf.get(STORAGENODE_NETTY_TRANSPORT_KEY) != null) {
+            STORAGENODE_NETTY_TRANSPORT = conf.get(STORAGENODE_NETTY_TRANSPORT_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_TRANSPORT.equalsIgnoreCase("nio") && !isEpollTransport()) {
+            throw new Exception(" Transport: " + STORAGENODE_NETTY_TRANSPORT + " is not valid, use nio or epoll");
+        }
+        if (conf.get(STORAGENODE_NETTY_EPOLL_CORK_KEY) != null) {
+            STORAGENODE_NETTY_EPOLL_CORK = Boolean.parseBoolean(conf.get(STORAGENODE_NETTY_EPOLL_CORK_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_EPOLL_EDGE_KEY) != null) {
+            STORAGENODE_NETTY_EPOLL_EDGE = Boolean.parseBoolean(conf.get(STORAGENODE_NETTY_EPOLL_EDGE_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_QUEUE_DEPTH_KEY) != null) {
+            STORAGENODE_NETTY_QUEUE_DEPTH = Integer.parseInt(conf.get(STORAGENODE_NETTY_QUEUE_DEPTH_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_QUEUE_DEPTH <= 0) {
+            throw new Exception(" Queue depth: " + STORAGENODE_NETTY_QUEUE_DEPTH + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_SPIN_BUDGET_KEY) != null) {
+            STORAGENODE_NETTY_SPIN_BUDGET = Long.parseLong(conf.get(STORAGENODE_NETTY_SPIN_BUDGET_KEY).trim());
+        }
+        CompletionSignal.setSpinBudget(STORAGENODE_NETTY_SPIN_BUDGET);
+        if (conf.get(STORAGENODE_NETTY_IO_TIMEOUT_KEY) != null) {
+            STORAGENODE_NETTY_IO_TIMEOUT = Long.parseLong(conf.get(STORAGENODE_NETTY_IO_TIMEOUT_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_CONNECTIONS_KEY) != null) {
+            STORAGENODE_NETTY_CONNECTIONS = Integer.parseInt(conf.get(STORAGENODE_NETTY_CONNECTIONS_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_CONNECTIONS <= 0) {
+            throw new Exception(" Connections: " + STORAGENODE_NETTY_CONNECTIONS + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_STRIPE_KEY) != null) {
+            STORAGENODE_NETTY_STRIPE = conf.get(STORAGENODE_NETTY_STRIPE_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_STRIPE.equalsIgnoreCase("roundrobin") &&
+                !STORAGENODE_NETTY_STRIPE.equalsIgnoreCase("leastbytes")) {
+            throw new Exception(" Stripe: " + STORAGENODE_NETTY_STRIPE + " is not valid, use roundrobin or leastbytes");
+        }
+        if (conf.get(STORAGENODE_NETTY_IDLE_TIMEOUT_KEY) != null) {
+            STORAGENODE_NETTY_IDLE_TIMEOUT = Long.parseLong(conf.get(STORAGENODE_NETTY_IDLE_TIMEOUT_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_HANDSHAKE_TIMEOUT_KEY) != null) {
+            STORAGENODE_NETTY_HANDSHAKE_TIMEOUT = Long.parseLong(conf.get(STORAGENODE_NETTY_HANDSHAKE_TIMEOUT_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_HANDSHAKE_TIMEOUT <= 0) {
+            throw new Exception(" Handshake timeout: " + STORAGENODE_NETTY_HANDSHAKE_TIMEOUT + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_STREAM_CHUNK_KEY) != null) {
+            STORAGENODE_NETTY_STREAM_CHUNK = Integer.parseInt(conf.get(STORAGENODE_NETTY_STREAM_CHUNK_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_STREAM_CHUNK <= 0) {
+            throw new Exception(" Stream chunk: " + STORAGENODE_NETTY_STREAM_CHUNK + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_WATERMARK_HIGH_KEY) != null) {
+            STORAGENODE_NETTY_WATERMARK_HIGH = Integer.parseInt(conf.get(STORAGENODE_NETTY_WATERMARK_HIGH_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_WATERMARK_LOW_KEY) != null) {
+            STORAGENODE_NETTY_WATERMARK_LOW = Integer.parseInt(conf.get(STORAGENODE_NETTY_WATERMARK_LOW_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_WATERMARK_LOW < 0 || STORAGENODE_NETTY_WATERMARK_LOW > STORAGENODE_NETTY_WATERMARK_HIGH) {
+            throw new Exception(" Watermarks: low " + STORAGENODE_NETTY_WATERMARK_LOW + " must be between 0 and high " +
+                    STORAGENODE_NETTY_WATERMARK_HIGH);
+        }
+        if (conf.get(STORAGENODE_NETTY_BACKPRESSURE_KEY) != null) {
+            STORAGENODE_NETTY_BACKPRESSURE = conf.get(STORAGENODE_NETTY_BACKPRESSURE_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_BACKPRESSURE.equalsIgnoreCase("block") &&
+                !STORAGENODE_NETTY_BACKPRESSURE.equalsIgnoreCase("reject")) {
+            throw new Exception(" Backpressure: " + STORAGENODE_NETTY_BACKPRESSURE + " is not valid, use block or reject");
+        }
+        if (conf.get(STORAGENODE_NETTY_BACKEND_KEY) != null) {
+            STORAGENODE_NETTY_BACKEND = conf.get(STORAGENODE_NETTY_BACKEND_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_BACKEND.equalsIgnoreCase("memory") && !isFileBackend()) {
+            throw new Exception(" Backend: " + STORAGENODE_NETTY_BACKEND + " is not valid, use memory or file");
+        }
+        if (conf.get(STORAGENODE_NETTY_BACKEND_FILE_KEY) != null) {
+            STORAGENODE_NETTY_BACKEND_FILE = conf.get(STORAGENODE_NETTY_BACKEND_FILE_KEY).trim();
+        }
+        if (conf.get(STORAGENODE_NETTY_PROVISIONING_KEY) != null) {
+            STORAGENODE_NETTY_PROVISIONING = conf.get(STORAGENODE_NETTY_PROVISIONING_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_PROVISIONING.equalsIgnoreCase("lazy") &&
+                !STORAGENODE_NETTY_PROVISIONING.equalsIgnoreCase("eager") &&
+                !STORAGENODE_NETTY_PROVISIONING.equalsIgnoreCase("hybrid")) {
+            throw new Exception(" Provisioning: " + STORAGENODE_NETTY_PROVISIONING + " is not valid, use lazy, eager or hybrid");
+        }
+        if (conf.get(STORAGENODE_NETTY_PREFAULT_THREADS_KEY) != null) {
+            STORAGENODE_NETTY_PREFAULT_THREADS = Integer.parseInt(conf.get(STORAGENODE_NETTY_PREFAULT_THREADS_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_PREFAULT_THREADS <= 0) {
+            throw new Exception(" Prefault threads: " + STORAGENODE_NETTY_PREFAULT_THREADS + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_OFFLOAD_THREADS_KEY) != null) {
+            STORAGENODE_NETTY_OFFLOAD_THREADS = Integer.parseInt(conf.get(STORAGENODE_NETTY_OFFLOAD_THREADS_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_OFFLOAD_THRESHOLD_KEY) != null) {
+            STORAGENODE_NETTY_OFFLOAD_THRESHOLD = Integer.parseInt(conf.get(STORAGENODE_NETTY_OFFLOAD_THRESHOLD_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_COMPRESSION_KEY) != null) {
+            STORAGENODE_NETTY_COMPRESSION = conf.get(STORAGENODE_NETTY_COMPRESSION_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_COMPRESSION.equalsIgnoreCase("none") &&
+                !STORAGENODE_NETTY_COMPRESSION.equalsIgnoreCase("snappy")) {
+            throw new Exception(" Compression: " + STORAGENODE_NETTY_COMPRESSION + " is not valid, use none or snappy");
+        }
+        if (conf.get(STORAGENODE_NETTY_COMPRESSION_THRESHOLD_KEY) != null) {
+            STORAGENODE_NETTY_COMPRESSION_THRESHOLD = Integer.parseInt(conf.get(STORAGENODE_NETTY_COMPRESSION_THRESHOLD_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_COMPRESSION_THRESHOLD <= 0) {
+            throw new Exception(" Compression threshold: " + STORAGENODE_NETTY_COMPRESSION_THRESHOLD + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_CHECKSUM_KEY) != null) {
+            STORAGENODE_NETTY_CHECKSUM = Boolean.parseBoolean(conf.get(STORAGENODE_NETTY_CHECKSUM_KEY).trim());
+        }
+        if (conf.get(STORAGENODE_NETTY_HEADER_KEY) != null) {
+            STORAGENODE_NETTY_HEADER = conf.get(STORAGENODE_NETTY_HEADER_KEY).trim();
+        }
+        if(!STORAGENODE_NETTY_HEADER.equalsIgnoreCase("fixed") &&
+                !STORAGENODE_NETTY_HEADER.equalsIgnoreCase("compact")) {
+            throw new Exception(" Header: " + STORAGENODE_NETTY_HEADER + " is not valid, use fixed or compact");
+        }
+        if (conf.get(STORAGENODE_NETTY_WRITEBEHIND_KEY) != null) {
+            STORAGENODE_NETTY_WRITEBEHIND = Integer.parseInt(conf.get(STORAGENODE_NETTY_WRITEBEHIND_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_WRITEBEHIND < 0) {
+            throw new Exception(" Write-behind: " + STORAGENODE_NETTY_WRITEBEHIND + " must not be negative");
+        }
+        if (conf.get(STORAGENODE_NETTY_WRITEBEHIND_DEADLINE_KEY) != null) {
+            STORAGENODE_NETTY_WRITEBEHIND_DEADLINE = Long.parseLong(conf.get(STORAGENODE_NETTY_WRITEBEHIND_DEADLINE_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_WRITEBEHIND_DEADLINE <= 0) {
+            throw new Exception(" Write-behind deadline: " + STORAGENODE_NETTY_WRITEBEHIND_DEADLINE + " must be positive");
+        }
+        if (conf.get(STORAGENODE_NETTY_READAHEAD_KEY) != null) {
+            STORAGENODE_NETTY_READAHEAD = Long.parseLong(conf.get(STORAGENODE_NETTY_READAHEAD_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_READAHEAD < 0) {
+            throw new Exception(" Read-ahead: " + STORAGENODE_NETTY_READAHEAD + " must not be negative");
+        }
+        if (conf.get(STORAGENODE_NETTY_READAHEAD_WINDOW_KEY) != null) {
+            STORAGENODE_NETTY_READAHEAD_WINDOW = Integer.parseInt(conf.get(STORAGENODE_NETTY_READAHEAD_WINDOW_KEY).trim());
+        }
+        if(STORAGENODE_NETTY_READAHEAD_WINDOW <= 0) {
+            throw new Exception(" Read-ahead window: " + STORAGENODE_NETTY_READAHEAD_WINDOW + " must be positive");
+        }
+        /* clients only run initCommon, and need the datanode port for the prewarm list */
+        if(conf.get(STORAGENODE_NETTY_PORT_KEY) != null) {
+            STORAGENODE_NETTY_PORT = Integer.parseInt(conf.get(STORAGENODE_NETTY_PORT_KEY));
+        }
+        if (conf.get(STORAGENODE_NETTY_PREWARM_KEY) != null) {
+            /* host:port,host:port,... where the port defaults to the datanode port */
+            STORAGENODE_NETTY_PREWARM = new ArrayList<InetSocketAddress>();
+            for (String entry : conf.get(STORAGENODE_NETTY_PREWARM_KEY).split(",")) {
+                entry = entry.trim();
+                if(entry.isEmpty()) {
+                    continue;
+                }
+                int colon = entry.lastIndexOf(':');
+                if(colon < 0) {
+                    STORAGENODE_NETTY_PREWARM.add(new InetSocketAddress(entry, STORAGENODE_NETTY_PORT));
+                } else {
+                    STORAGENODE_NETTY_PREWARM.add(new InetSocketAddress(entry.substring(0, colon),
+                            Integer.parseInt(entry.substring(colon + 1))));
+                }
+            }
+        }
+    }
+
     public void init(CrailConfiguration conf, String[] args) throws Exception {
         /* check for old values and error the user */
         faultyMap.put("crail.storage.netty.interface", STORAGENODE_NETTY_ADDRESS_KEY);
@@ -137,6 +547,7 @@ public class NettyConstants {
         faultyMap.put("crail.datanode.netty.interface", STORAGENODE_NETTY_ADDRESS_KEY);
         faultyMap.put("crail.datanode.netty.port", STORAGENODE_NETTY_PORT_KEY);
         checkDeprecatedProperties(conf);
+        initCommon(conf);
 
         /* now we set the new values */
         if (conf.get(STORAGENODE_NETTY_STORAGE_LIMIT_KEY) != null) {
@@ -161,10 +572,6 @@ public class NettyConstants {
         if (conf.get(STORAGENODE_NETTY_ADDRESS_KEY) != null) {
             _ipaddress = conf.get(STORAGENODE_NETTY_ADDRESS_KEY);
         }
-        if(conf.get(STORAGENODE_NETTY_PORT_KEY) != null) {
-            STORAGENODE_NETTY_PORT = Integer.parseInt(conf.get(STORAGENODE_NETTY_PORT_KEY));
-        }
-
         /* the args are given priority */
         CommandLineParser parser = new GnuParser();
         CommandLine cmd = null;
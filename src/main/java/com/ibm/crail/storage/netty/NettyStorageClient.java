@@ -40,10 +40,14 @@ public class NettyStorageClient implements StorageClient {
     }
 
     public void init(CrailConfiguration crailConfiguration, String[] strings) throws Exception {
-        //TODO: parse client side parameters
+        NettyConstants.get().initCommon(crailConfiguration);
         synchronized(this) {
             if (epGroup == null) {
                 epGroup = new NettyEndpointGroup();
+                /* connect to the well known datanodes while the job is still starting up */
+                if(!NettyConstants.get().getPrewarmAddresses().isEmpty()) {
+                    epGroup.prewarm(NettyConstants.get().getPrewarmAddresses());
+                }
             }
         }
     }
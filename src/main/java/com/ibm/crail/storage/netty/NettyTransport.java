@@ -0,0 +1,122 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+
+/**
+ * Selects between the NIO and the native epoll transport for all bootstraps. The choice
+ * is made once per bootstrap, so the event loop group and the channel classes always match.
+ */
+public class NettyTransport {
+    private static final Logger LOG = CrailNettyUtils.getLogger();
+    private final boolean epoll;
+    private final boolean cork;
+    private final boolean edgeTriggered;
+
+    private NettyTransport(boolean epoll, boolean cork, boolean edgeTriggered){
+        this.epoll = epoll;
+        this.cork = cork;
+        this.edgeTriggered = edgeTriggered;
+    }
+
+    /**
+     * Picks the transport configured with crail.storage.netty.transport. If epoll is asked
+     * for but the native library cannot be loaded, we fall back to NIO.
+     *
+     * @return the transport to build bootstraps with
+     */
+    public static NettyTransport select() {
+        NettyConstants conf = NettyConstants.get();
+        boolean useEpoll = false;
+        if(conf.isEpollTransport()) {
+            if(Epoll.isAvailable()) {
+                useEpoll = true;
+            } else {
+                LOG.warn("epoll transport is not available, falling back to nio. Cause: " +
+                        Epoll.unavailabilityCause());
+            }
+        }
+        return new NettyTransport(useEpoll, conf.isEpollCork(), conf.isEpollEdgeTriggered());
+    }
+
+    final public boolean isEpoll() {
+        return this.epoll;
+    }
+
+    public EventLoopGroup newEventLoopGroup() {
+        if(epoll) {
+            return new EpollEventLoopGroup();
+        }
+        return new NioEventLoopGroup();
+    }
+
+    public Class<? extends SocketChannel> socketChannel() {
+        if(epoll) {
+            return EpollSocketChannel.class;
+        }
+        return NioSocketChannel.class;
+    }
+
+    public Class<? extends ServerSocketChannel> serverSocketChannel() {
+        if(epoll) {
+            return EpollServerSocketChannel.class;
+        }
+        return NioServerSocketChannel.class;
+    }
+
+    /* epoll specific options on client connections */
+    public void configure(Bootstrap boot) {
+        if(epoll) {
+            boot.option(EpollChannelOption.EPOLL_MODE, edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+            boot.option(EpollChannelOption.TCP_CORK, cork);
+        }
+    }
+
+    /* epoll specific options on accepted connections */
+    public void configure(ServerBootstrap boot) {
+        if(epoll) {
+            boot.option(EpollChannelOption.EPOLL_MODE, edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+            boot.childOption(EpollChannelOption.EPOLL_MODE, edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+            boot.childOption(EpollChannelOption.TCP_CORK, cork);
+        }
+    }
+
+    final public String toString() {
+        return (epoll ? "epoll" : "nio") + (epoll ? " (cork: " + cork + ", edge: " + edgeTriggered + ")" : "");
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One entry of the endpoint cache: the connections to one datanode and the number of handles
+ * that use them. Once the last handle is closed, the connections stay warm for the idle timeout
+ * and are only closed if nobody picks them up again until then.
+ */
+class CachedEndpoint implements TimerTask {
+    /* reference count that can never be acquired again */
+    private static final int EVICTED = -1;
+
+    private final NettyEndpointGroup group;
+    private final InetSocketAddress address;
+    private final AtomicInteger refs;
+    private NettyEndpoint[] stripes;
+    private NettyDataEndpoint endpoint;
+    /* the eviction armed when the last handle went away, guarded by idleLock */
+    private final Object idleLock;
+    private Timeout idle;
+    private long idleSince;
+
+    CachedEndpoint(NettyEndpointGroup group, InetSocketAddress address){
+        this.group = group;
+        this.address = address;
+        this.refs = new AtomicInteger(0);
+        this.stripes = null;
+        this.endpoint = null;
+        this.idleLock = new Object();
+        this.idle = null;
+        this.idleSince = 0;
+    }
+
+    /* false if the entry has been evicted in the meantime, the caller has to look up again */
+    final boolean acquire(){
+        for(;;) {
+            int current = refs.get();
+            if(current == EVICTED) {
+                return false;
+            }
+            if(refs.compareAndSet(current, current + 1)) {
+                if(current == 0) {
+                    /* picked up again while idle */
+                    cancelIdle();
+                }
+                return true;
+            }
+        }
+    }
+
+    private void cancelIdle(){
+        synchronized (idleLock) {
+            if(idle != null) {
+                idle.cancel();
+                idle = null;
+            }
+        }
+    }
+
+    final void release(){
+        if(refs.decrementAndGet() == 0) {
+            long idleMs = group.getIdleTimeout();
+            if(idleMs >= 0) {
+                synchronized (idleLock) {
+                    /* at most one eviction is armed, for the latest idle period */
+                    if(idle != null) {
+                        idle.cancel();
+                    }
+                    idleSince = System.nanoTime();
+                    idle = group.getTimer().newTimeout(this, idleMs, TimeUnit.MILLISECONDS);
+                }
+            } else if(!group.isCached(address, this)) {
+                /* never evicted by age, but dropped from the cache as dead */
+                run(null);
+            }
+        }
+    }
+
+    /* idle timer: only evicts if nobody came back in the meantime */
+    public void run(Timeout timeout) {
+        if(timeout != null) {
+            synchronized (idleLock) {
+                /* a timeout of an earlier idle period that fired before it could be cancelled */
+                if(timeout != idle) {
+                    return;
+                }
+                long left = TimeUnit.MILLISECONDS.toNanos(group.getIdleTimeout()) - (System.nanoTime() - idleSince);
+                if(left > 0) {
+                    idle = group.getTimer().newTimeout(this, left, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                idle = null;
+            }
+        }
+        if(refs.compareAndSet(0, EVICTED)) {
+            group.uncache(address, this);
+            closeStripes();
+        }
+    }
+
+    /* connects on first use, the first handle pays the handshake, all later ones share it */
+    final synchronized NettyDataEndpoint endpoint() throws IOException {
+        if(endpoint == null) {
+            stripes = group.connectStripes(address);
+            endpoint = stripes.length == 1 ? stripes[0] : new NettyStripedEndpoint(stripes, group.isStripeRoundRobin());
+        }
+        return endpoint;
+    }
+
+    /* a connection the datanode has dropped is not worth sharing anymore */
+    final synchronized boolean isActive(){
+        if(stripes == null) {
+            return true;
+        }
+        for (NettyEndpoint ep : stripes) {
+            if(!ep.isActive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    final synchronized void closeStripes(){
+        if(stripes == null) {
+            return;
+        }
+        for (NettyEndpoint ep : stripes) {
+            try {
+                ep.close();
+            } catch (Exception e) {
+                /* the channel is going away anyway */
+            }
+        }
+    }
+
+    final public String toString(){
+        return address + " refs: " + refs.get() + " -> " + endpoint;
+    }
+}
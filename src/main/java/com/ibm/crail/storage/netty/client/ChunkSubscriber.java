@@ -0,0 +1,44 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Consumer of a streamed read, modelled after a Reactive Streams subscriber. All callbacks run
+ * on the event loop of the connection, so they must not block.
+ */
+public interface ChunkSubscriber {
+
+    /* called once, before anything else. No data flows before subscription.request() */
+    void onSubscribe(ChunkSubscription subscription);
+
+    /* the next chunk, in order. The subscriber owns the buffer and has to release it */
+    void onNext(ByteBuf chunk);
+
+    /* terminal, no more calls follow */
+    void onError(Throwable cause);
+
+    /* terminal, the whole range has been delivered */
+    void onComplete();
+}
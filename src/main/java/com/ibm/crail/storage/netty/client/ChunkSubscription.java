@@ -0,0 +1,36 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+/**
+ * Demand of a ChunkSubscriber. The datanode sends at most as many chunks as have been
+ * requested, so the memory held by a stream is bounded by its outstanding demand.
+ */
+public interface ChunkSubscription {
+
+    /* asks for n more chunks */
+    void request(long n);
+
+    /* stops the stream, chunks already on the wire are dropped */
+    void cancel();
+}
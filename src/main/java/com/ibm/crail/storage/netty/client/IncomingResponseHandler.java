@@ -22,29 +22,178 @@
 
 package com.ibm.crail.storage.netty.client;
 
+import com.ibm.crail.storage.netty.CrailNettyUtils;
+import com.ibm.crail.storage.netty.rpc.MessageTypes;
 import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
+import com.ibm.crail.storage.netty.rpc.RdmaMsgTx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class IncomingResponseHandler extends SimpleChannelInboundHandler<RdmaMsgRx> {
-    private NettyEndpointGroup group;
+    private InflightTable inflight;
+    private StreamTable streams;
+    private WriteGate gate;
+    private WireFeatures features;
+    /* completed once the handshake is over, one way or the other */
+    private Promise<Void> handshake;
+    /* how long we wait for the answer before we speak to the datanode as before the handshake */
+    private long handshakeTimeout;
+    private ScheduledFuture<?> handshakeExpiry;
+    /* set on the event loop, once we have stopped waiting for the answer */
+    private boolean timedOut;
+
+    public IncomingResponseHandler(InflightTable inflight, StreamTable streams, WriteGate gate,
+                                   WireFeatures features, Promise<Void> handshake, long handshakeTimeout){
+        this.inflight = inflight;
+        this.streams = streams;
+        this.gate = gate;
+        this.features = features;
+        this.handshake = handshake;
+        this.handshakeTimeout = handshakeTimeout;
+        this.timedOut = false;
+    }
 
-    public IncomingResponseHandler(NettyEndpointGroup grp){
-        this.group = grp;
+    /* the answer to our HELLO, or the rejection of it by a datanode that does not know the handshake */
+    private void handleHello(ChannelHandlerContext ctx, RdmaMsgRx rxMsg){
+        if(this.handshakeExpiry != null) {
+            this.handshakeExpiry.cancel(false);
+        }
+        if(this.timedOut) {
+            if(rxMsg.type() == MessageTypes.HELLO_RESP && rxMsg.status() == 0) {
+                /* it has switched to what it agreed on, while we have been sending as before */
+                CrailNettyUtils.getLogger().error("Connection " + ctx.channel() + " answered the handshake after " +
+                        this.handshakeTimeout + " ms, closing it");
+                ctx.channel().close();
+            }
+            /* otherwise the rejection of a datanode without the handshake, we are already speaking as before */
+            return;
+        }
+        if(rxMsg.type() == MessageTypes.HELLO_RESP && rxMsg.status() == 0) {
+            this.features.agree(rxMsg.address());
+        } else {
+            this.features.legacy();
+        }
+        CrailNettyUtils.getLogger().debug("Connection " + ctx.channel() + " agreed on " + this.features);
+        /* the endpoint starts sending what was queued */
+        this.handshake.trySuccess(null);
+    }
+
+    /* a chunk, the end (no data) or the failure of a streamed read */
+    private void handleStream(RdmaMsgRx rxMsg){
+        NettyReadStream stream = this.streams.get(rxMsg.cookie());
+        if(stream == null) {
+            /* cancelled, the payload goes away with the message */
+            return;
+        }
+        if(rxMsg.status() != 0) {
+            this.streams.remove(rxMsg.cookie());
+            stream.onError(new IOException("Storage node failed " + stream));
+        } else if(rxMsg.isChecksumFailed()) {
+            this.streams.remove(rxMsg.cookie());
+            stream.onError(new IOException("Checksum mismatch on a chunk of " + stream));
+        } else if(rxMsg.opLength() == 0) {
+            this.streams.remove(rxMsg.cookie());
+            stream.onComplete();
+        } else {
+            stream.onData(rxMsg.takeRxPayload());
+        }
     }
 
     @Override
     final protected void channelRead0(ChannelHandlerContext channelHandlerContext, RdmaMsgRx rxMsg) throws Exception {
-        long cookie = rxMsg.cookie();
-        NettyIOResult result = this.group.getAndRemoveInflight(cookie);
-        assert result!=null;
-        result.markDone(rxMsg);
+        if(rxMsg.type() == MessageTypes.STREAM_DATA) {
+            handleStream(rxMsg);
+            rxMsg.recycle();
+            return;
+        }
+        if(rxMsg.cookie() == MessageTypes.HELLO_COOKIE) {
+            handleHello(channelHandlerContext, rxMsg);
+            rxMsg.recycle();
+            return;
+        }
+        /* reads are already out of the table, the decoder took them before placing their payload */
+        NettyIOResult result = (NettyIOResult) rxMsg.getOwner();
+        if(result == null) {
+            result = this.inflight.remove(rxMsg.cookie());
+        }
+        if(result == null) {
+            CrailNettyUtils.getLogger().error("Stale or unknown completion, dropping " + rxMsg);
+        } else if(rxMsg.isChecksumFailed()) {
+            /* the data in the destination is not what the storage node sent */
+            result.markFailed(new IOException("Checksum mismatch on " + rxMsg));
+        } else if(rxMsg.status() == MessageTypes.STATUS_CHECKSUM) {
+            result.markFailed(new IOException("Storage node found a checksum mismatch on " + rxMsg));
+        } else {
+            result.markDone(rxMsg);
+        }
+        rxMsg.recycle();
+    }
+
+    @Override
+    final public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        /* the first message on the connection, nothing else goes out before the answer */
+        RdmaMsgTx hello = RdmaMsgTx.newInstance();
+        /* stag 0 is never handed out, so that datanodes without the handshake reject it */
+        hello.initHeader(this.features.hello(), 0, 0, MessageTypes.HELLO, 0, MessageTypes.HELLO_COOKIE);
+        ctx.channel().writeAndFlush(hello).addListener(hello);
+        /* a datanode without the handshake only decodes the HELLO once more bytes follow it, which we hold back
+         * until the answer. On the event loop, so that it cannot race with the answer itself */
+        this.handshakeExpiry = ctx.executor().schedule(new Runnable() {
+            public void run() {
+                if(handshake.isDone()) {
+                    return;
+                }
+                timedOut = true;
+                features.legacy();
+                CrailNettyUtils.getLogger().warn("Connection " + ctx.channel() + " has not answered the handshake in " +
+                        handshakeTimeout + " ms, speaking to it as before");
+                /* the endpoint starts sending what was queued, which also lets the datanode get past our HELLO */
+                handshake.trySuccess(null);
+            }
+        }, this.handshakeTimeout, TimeUnit.MILLISECONDS);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    final public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        /* submitters waiting for the outbound buffer to drain below the low watermark */
+        if(ctx.channel().isWritable()) {
+            this.gate.wakeup();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    final public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if(this.handshakeExpiry != null) {
+            this.handshakeExpiry.cancel(false);
+        }
+        this.handshake.tryFailure(new IOException("Connection lost to storage node " + ctx.channel().remoteAddress() +
+                " during the handshake"));
+        /* nobody is going to answer what is still in flight, fail it right away */
+        int failed = this.inflight.failAll(new IOException("Connection lost to storage node " + ctx.channel().remoteAddress()));
+        failed += this.streams.failAll(new IOException("Connection lost to storage node " + ctx.channel().remoteAddress()));
+        if(failed > 0) {
+            CrailNettyUtils.getLogger().error("Connection " + ctx.channel() + " is gone, failed " + failed + " operations in flight");
+        }
+        this.gate.wakeup();
+        super.channelInactive(ctx);
     }
 
     @Override
     final public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         // Close the connection when an exception is raised.
         cause.printStackTrace();
+        this.inflight.failAll(new IOException("Connection to storage node " + ctx.channel().remoteAddress() +
+                " failed", cause));
+        this.streams.failAll(new IOException("Connection to storage node " + ctx.channel().remoteAddress() +
+                " failed", cause));
         ctx.close();
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity table of the operations in flight on one connection. The cookie that goes
+ * on the wire carries the slot index in its lower 32 bits and the generation of the slot in
+ * the upper 32 bits, so a lookup is an array load and a late completion for a slot that has
+ * been reused since is detected and dropped. The generation wraps at GENERATION_LIMIT, which
+ * keeps it within two bytes of a compact header. Only a completion that comes back exactly a
+ * multiple of that many reuses of its slot late goes undetected. The capacity is also the
+ * queue depth of the connection: insert() blocks when all slots are taken.
+ */
+public class InflightTable {
+    /* marks a slot which is being released */
+    private static final NettyIOResult TOMBSTONE = new NettyIOResult();
+    /* generations stay below it, so that they fit into a two byte varint */
+    public static final int GENERATION_LIMIT = 1 << 14;
+
+    private final AtomicReferenceArray<NettyIOResult> slots;
+    private final int[] generations;
+    private final Semaphore freeSlots;
+    private final AtomicInteger hint;
+
+    public InflightTable(int capacity){
+        this.slots = new AtomicReferenceArray<NettyIOResult>(capacity);
+        this.generations = new int[capacity];
+        this.freeSlots = new Semaphore(capacity);
+        this.hint = new AtomicInteger(0);
+    }
+
+    /**
+     * Parks an operation in a free slot, waiting for one if the connection is at its queue depth.
+     *
+     * @param op The operation to track.
+     *
+     * @return the cookie to put on the wire
+     */
+    final public long insert(NettyIOResult op) throws InterruptedException {
+        freeSlots.acquire();
+        return park(op);
+    }
+
+    /**
+     * Like insert(), but never waits. For speculative operations that are not worth queueing for.
+     *
+     * @return the cookie to put on the wire, or -1 if the connection is at its queue depth
+     */
+    final public long tryInsert(NettyIOResult op){
+        if(!freeSlots.tryAcquire()) {
+            return -1;
+        }
+        return park(op);
+    }
+
+    private long park(NettyIOResult op){
+        int capacity = slots.length();
+        int start = (hint.getAndIncrement() & Integer.MAX_VALUE) % capacity;
+        /* we own a permit, so there is a free slot somewhere */
+        for (int i = 0; ; i++) {
+            int index = (start + i) % capacity;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, op)) {
+                /* the CAS makes the generation bump of the previous release visible */
+                return ((long) generations[index] << 32) | index;
+            }
+        }
+    }
+
+    final public NettyIOResult get(long cookie){
+        int index = (int) cookie;
+        if(index < 0 || index >= slots.length()) {
+            return null;
+        }
+        NettyIOResult op = slots.get(index);
+        if(op == null || op == TOMBSTONE || generations[index] != (int) (cookie >>> 32)) {
+            return null;
+        }
+        return op;
+    }
+
+    /**
+     * Releases the slot of a cookie. Safe against concurrent removal of the same cookie, only one
+     * caller gets the operation back.
+     *
+     * @param cookie The cookie as it came back from the wire.
+     *
+     * @return the operation or null if the cookie is stale or unknown
+     */
+    final public NettyIOResult remove(long cookie){
+        NettyIOResult op = get(cookie);
+        if(op == null) {
+            return null;
+        }
+        int index = (int) cookie;
+        if(!slots.compareAndSet(index, op, TOMBSTONE)) {
+            return null;
+        }
+        generations[index] = (generations[index] + 1) % GENERATION_LIMIT;
+        slots.set(index, null);
+        freeSlots.release();
+        return op;
+    }
+
+    /**
+     * Fails every operation that is still in flight, used when the connection is gone.
+     *
+     * @param cause The reason handed to the waiters.
+     *
+     * @return the number of operations failed
+     */
+    final public int failAll(Throwable cause){
+        int failed = 0;
+        for (int index = 0; index < slots.length(); index++) {
+            NettyIOResult op = slots.get(index);
+            if(op == null || op == TOMBSTONE) {
+                continue;
+            }
+            long cookie = ((long) generations[index] << 32) | index;
+            op = remove(cookie);
+            if(op != null) {
+                op.markFailed(cause);
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    final public int capacity(){
+        return slots.length();
+    }
+
+    final public String toString(){
+        return " InflightTable capacity: " + slots.length() + " free: " + freeSlots.availablePermits();
+    }
+}
@@ -24,47 +24,332 @@ package com.ibm.crail.storage.netty.client;
 
 import com.ibm.crail.CrailBuffer;
 import com.ibm.crail.metadata.BlockInfo;
-import com.ibm.crail.storage.StorageEndpoint;
 import com.ibm.crail.storage.StorageFuture;
+import com.ibm.crail.storage.netty.CrailNettyUtils;
+import com.ibm.crail.storage.netty.NettyConstants;
 import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import com.ibm.crail.storage.netty.rpc.RdmaEncoderTx;
 import com.ibm.crail.storage.netty.rpc.RdmaMsgTx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.internal.PlatformDependent;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class NettyEndpoint implements StorageEndpoint {
+public class NettyEndpoint implements NettyDataEndpoint {
     private Channel noAtomicClientChannel;
+    /* requests queue up until the connection is up and the HELLO is answered, the caller never waits for it */
+    private final Future<Void> connected;
+    /* what the datanode on the other side has agreed to */
+    private final WireFeatures features;
+    /* checksums and compresses payloads on the submitting thread, not on the event loop */
+    private final RdmaEncoderTx encoder;
     private NettyEndpointGroup group;
+    private InflightTable inflight;
+    private StreamTable streams;
+    private final int streamChunk;
+    private final Timer timer;
+    private final long timeoutMs;
+    /* application threads queue here, the event loop of the channel drains */
+    private final Queue<RdmaMsgTx> submissions;
+    private final AtomicBoolean drainScheduled;
+    private final Runnable drainTask;
+    /* bytes of all operations issued but not completed yet, used for striping */
+    private final AtomicLong pendingBytes;
+    /* keeps what we queue for the wire bounded */
+    private final WriteGate gate;
+    /* small sequential writes are staged here, null if write-behind is off */
+    private final WriteBehind writeBehind;
+    /* ranges read ahead for sequential readers, null if read-ahead is off */
+    private final ReadAhead readAhead;
 
-    public NettyEndpoint(NettyEndpointGroup group, Channel c){
-        this.noAtomicClientChannel = c;
+    public NettyEndpoint(NettyEndpointGroup group, ChannelFuture connectFuture, Future<Void> handshake,
+                         InflightTable inflight, StreamTable streams, WriteGate gate, WireFeatures features,
+                         RdmaEncoderTx encoder){
+        this.connected = handshake;
+        this.features = features;
+        this.encoder = encoder;
+        this.noAtomicClientChannel = connectFuture.channel();
         this.group = group;
+        this.inflight = inflight;
+        this.streams = streams;
+        this.streamChunk = NettyConstants.get().getStreamChunk();
+        this.timer = group.getTimer();
+        this.timeoutMs = NettyConstants.get().getIOTimeout();
+        this.submissions = PlatformDependent.newMpscQueue();
+        this.drainScheduled = new AtomicBoolean(false);
+        this.pendingBytes = new AtomicLong(0);
+        this.gate = gate;
+        this.writeBehind = (NettyConstants.get().getWriteBehind() > 0) ?
+                new WriteBehind(this, NettyConstants.get().getWriteBehind(), this.timer,
+                        NettyConstants.get().getWriteBehindDeadline()) : null;
+        this.readAhead = (NettyConstants.get().getReadAhead() > 0) ?
+                new ReadAhead(this, NettyConstants.get().getReadAhead(), NettyConstants.get().getReadAheadWindow()) : null;
+        this.drainTask = new Runnable() {
+            public void run() {
+                drainSubmissions();
+            }
+        };
+        this.connected.addListener(new GenericFutureListener<Future<Void>>() {
+            public void operationComplete(Future<Void> future) throws Exception {
+                if(future.isSuccess()) {
+                    /* flush what was queued during the handshake, on the event loop of the channel */
+                    if(drainScheduled.compareAndSet(false, true)) {
+                        noAtomicClientChannel.eventLoop().execute(drainTask);
+                    }
+                } else {
+                    NettyEndpoint.this.inflight.failAll(new IOException("Connecting to storage node failed",
+                            future.cause()));
+                    NettyEndpoint.this.streams.failAll(new IOException("Connecting to storage node failed",
+                            future.cause()));
+                    noAtomicClientChannel.eventLoop().execute(drainTask);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a message without taking any lock. Only the first submitter after a drain pays
+     * for waking up the event loop, everybody else just piggybacks on the pending drain.
+     */
+    private void submit(RdmaMsgTx tx){
+        gate.enqueued(wireBytes(tx));
+        submissions.offer(tx);
+        if(drainScheduled.compareAndSet(false, true)) {
+            noAtomicClientChannel.eventLoop().execute(drainTask);
+        }
     }
 
-    private ChannelFuture atomicFlush(RdmaMsgTx tx, boolean isRead){
-        ChannelFuture ftx;
-        synchronized (this){
-            if(isRead) {
-                ftx = noAtomicClientChannel.writeAndFlush(tx.getHeaderPayload());
-            } else {
-                noAtomicClientChannel.write(tx.getHeaderPayload());
-                ftx = noAtomicClientChannel.writeAndFlush(tx.getDataPayload().retain());
+    /**
+     * Arms the deadline, queues the message and makes sure the operation does not wait forever
+     * on a connection that is already gone.
+     */
+    private void issue(NettyIOResult op, long cookie, RdmaMsgTx tx){
+        if(timeoutMs > 0) {
+            op.armDeadline(timer, inflight, timeoutMs);
+        }
+        submit(tx);
+        /* if the channel went down before we were in the table, channelInactive has missed us */
+        if(!isActive() && inflight.remove(cookie) == op) {
+            op.markFailed(new IOException("Connection lost to storage node " + noAtomicClientChannel.remoteAddress()));
+        }
+    }
+
+    /**
+     * Checksums and compresses the payload right here, before the handshake is over the encoder
+     * does it. Fails the operation if that goes wrong.
+     *
+     * @return false if the operation has been failed
+     */
+    private boolean prepare(NettyIOResult op, long cookie, RdmaMsgTx tx){
+        try {
+            encoder.prepare(tx);
+            return true;
+        } catch (Exception e) {
+            tx.recycle();
+            if(inflight.remove(cookie) == op) {
+                op.markFailed(new IOException("Preparing the payload of " + op + " failed", e));
+            }
+            return false;
+        }
+    }
+
+    /* runs on the event loop: write all that is queued, then one flush for all of it */
+    private void drainSubmissions(){
+        if(!connected.isDone()) {
+            /* the handshake listener drains once the datanode has answered */
+            drainScheduled.set(false);
+            /* unless it ran in between and found us still scheduled */
+            if(!connected.isDone() || !drainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+        if(!connected.isSuccess()) {
+            /* their operations have already been failed, only give the messages back */
+            RdmaMsgTx tx;
+            while ((tx = submissions.poll()) != null) {
+                gate.dequeued(wireBytes(tx));
+                tx.recycle();
+            }
+            drainScheduled.set(false);
+            return;
+        }
+        for(;;) {
+            RdmaMsgTx tx;
+            int written = 0;
+            while ((tx = submissions.poll()) != null) {
+                /* from here on the channel accounts for it, before the tx can be recycled */
+                gate.dequeued(wireBytes(tx));
+                /* tx goes back to its pool once written */
+                noAtomicClientChannel.write(tx).addListener(tx);
+                written++;
+            }
+            if(written > 0) {
+                noAtomicClientChannel.flush();
             }
+            drainScheduled.set(false);
+            /* a submitter may have found the flag still set after our last poll */
+            if(submissions.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private static long wireBytes(RdmaMsgTx tx){
+        return RdmaMsgTx.CSIZE + (tx.hasTxPayload() ? tx.opLength() : 0);
+    }
+
+    /**
+     * Waits until the connection takes more data, or hands back an already failed future if
+     * the endpoint rejects on overload.
+     *
+     * @return null if the operation can go ahead
+     */
+    private NettyIOResult admit() throws InterruptedException {
+        if(gate.admit(noAtomicClientChannel)) {
+            return null;
+        }
+        NettyIOResult rejected = new NettyIOResult();
+        rejected.markFailed(new RejectedExecutionException("Outbound buffer of " + noAtomicClientChannel +
+                " is above its high watermark"));
+        return rejected;
+    }
+
+    /* accounted before the op enters the table, so a failure can never retire it first */
+    private long track(NettyIOResult op, int len) throws InterruptedException {
+        pendingBytes.addAndGet(len);
+        op.setOwner(this, len);
+        try {
+            /* blocks if this connection is at its queue depth */
+            return this.inflight.insert(op);
+        } catch (InterruptedException e) {
+            pendingBytes.addAndGet(-len);
+            throw e;
+        }
+    }
+
+    /* called exactly once per operation, by whoever took it out of the in-flight table */
+    final void retire(int length){
+        pendingBytes.addAndGet(-length);
+    }
+
+    final public long getPendingBytes(){
+        return pendingBytes.get();
+    }
+
+    /* whatever comes next must not overtake the staged writes */
+    final void flushStaged() throws InterruptedException {
+        if(writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    /* whether this connection has writes to the block staged, a read of it has to go out behind them */
+    final boolean holdsStaged(BlockInfo remoteMr){
+        return writeBehind != null && writeBehind.holds(remoteMr.getLkey());
+    }
+
+    /* a write to the block on another connection to the same datanode, see NettyStripedEndpoint */
+    final void invalidateRead(BlockInfo remoteMr){
+        if(readAhead != null) {
+            readAhead.invalidate(remoteMr.getLkey());
+        }
+    }
+
+    /* staged writes must not wait there for a free slot, see WriteBehind */
+    final boolean inEventLoop(){
+        return noAtomicClientChannel.eventLoop().inEventLoop();
+    }
+
+    /* whether a write there would continue what this connection has staged */
+    final boolean continuesStaged(BlockInfo remoteMr, long remoteOffset){
+        return writeBehind != null && writeBehind.continues(remoteMr.getLkey(), remoteMr.getAddr() + remoteOffset);
+    }
+
+    /* whether a read there would continue a stream this connection reads ahead for */
+    final boolean continuesRead(BlockInfo remoteMr, long remoteOffset){
+        return readAhead != null && readAhead.continues(remoteMr.getLkey(), remoteMr.getAddr() + remoteOffset);
+    }
+
+    /* accounted like track, but never waits: -1 if the connection is at its queue depth */
+    private long tryTrack(NettyIOResult op, int len){
+        pendingBytes.addAndGet(len);
+        op.setOwner(this, len);
+        long id = this.inflight.tryInsert(op);
+        if(id < 0) {
+            pendingBytes.addAndGet(-len);
+        }
+        return id;
+    }
+
+    /* a speculative read for ReadAhead, null if the connection is at its queue depth */
+    final NettyIOResult prefetch(ByteBuffer dest, int stag, long address, int len){
+        NettyIOResult r = new NettyIOResult();
+        long id = tryTrack(r, len);
+        if(id < 0) {
+            return null;
+        }
+        r.initRead(id, len, dest);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(address, len, stag, MessageTypes.READ_REQ, 0, id);
+        issue(r, id, tx);
+        return r;
+    }
+
+    /* the slot for a write that carries staged writes, -1 if there is none free, see WriteBehind */
+    final long reserveStaged(NettyIOResult w, int len){
+        return tryTrack(w, len);
+    }
+
+    /* the same, but waits for a slot, never on the event loop */
+    final long awaitStaged(NettyIOResult w, int len) throws InterruptedException {
+        return track(w, len);
+    }
+
+    /* sends the staged data of several small writes as one, in the slot reserved for it */
+    final void writeStaged(NettyIOResult w, long id, ByteBuf payload, int stag, long address, NettyIOResult[] members){
+        int len = payload.readableBytes();
+        w.initWriteBehind(id, len, members);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(address, len, stag, MessageTypes.WRITE_REQ, 0, id);
+        tx.ownTxPayload(payload);
+        if(prepare(w, id, tx)) {
+            issue(w, id, tx);
         }
-        return ftx;
     }
 
     final public StorageFuture write(CrailBuffer wBufferC, BlockInfo remoteMr, long remoteOffset) throws IOException, InterruptedException{
-        final RdmaMsgTx tx = new RdmaMsgTx();
-        long id = this.group.getNextSlot();
-        NettyIOResult w = new NettyIOResult();
+        NettyIOResult rejected = admit();
+        if(rejected != null) {
+            return rejected;
+        }
         ByteBuffer wBuffer = wBufferC.getByteBuffer();
         int len = wBuffer.remaining();
+        if(readAhead != null) {
+            readAhead.invalidate(remoteMr.getLkey());
+        }
+        if(writeBehind != null) {
+            if(writeBehind.accepts(len)) {
+                return writeBehind.stage(wBuffer, remoteMr.getLkey(), remoteMr.getAddr() + remoteOffset);
+            }
+            flushStaged();
+        }
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        NettyIOResult w = new NettyIOResult();
+        long id = track(w, len);
         w.initWrite(id, len);
-        this.group.insertNewInflight(id, w);
 
         tx.initHeader(remoteMr.getAddr() + remoteOffset,
                 len,
@@ -73,25 +358,33 @@ public class NettyEndpoint implements StorageEndpoint {
                 0,
                 id);
         tx.referenceTxPayload(wBuffer);
-        this.atomicFlush(tx, false).addListener(
-                new GenericFutureListener<io.netty.util.concurrent.Future<? super Void>>() {
-            public void operationComplete(io.netty.util.concurrent.Future<? super Void> future) throws Exception {
-                assert (!MessageTypes.isTypeIllegal(tx.type()));
-                tx.releaseHeaderPayload();
-                tx.releaseTxPayload();
-            }
-        });
+        if(prepare(w, id, tx)) {
+            /* header and data go out as one message */
+            issue(w, id, tx);
+        }
         return w;
     }
 
     final public StorageFuture read(CrailBuffer rBufferC, BlockInfo remoteMr, long remoteOffset) throws IOException, InterruptedException{
-        RdmaMsgTx tx = new RdmaMsgTx();
-        long id = this.group.getNextSlot();
-        NettyIOResult r = new NettyIOResult();
+        flushStaged();
         ByteBuffer rBuffer = rBufferC.getByteBuffer();
+        if(readAhead != null) {
+            NettyIOResult served = readAhead.serve(rBuffer, remoteMr.getLkey(), remoteMr.getAddr() + remoteOffset,
+                    remoteMr.getAddr() + remoteMr.getLength());
+            if(served != null) {
+                readAhead.fill(remoteMr.getLkey(), remoteMr.getAddr() + remoteOffset + rBuffer.remaining());
+                return served;
+            }
+        }
+        NettyIOResult rejected = admit();
+        if(rejected != null) {
+            return rejected;
+        }
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        NettyIOResult r = new NettyIOResult();
         int len = rBuffer.limit() - rBuffer.position();
+        long id = track(r, len);
         r.initRead(id, len, rBuffer);
-        this.group.insertNewInflight(id, r);
         tx.initHeader(remoteMr.getAddr() + remoteOffset,
                 len,
                 remoteMr.getLkey(),
@@ -99,17 +392,185 @@ public class NettyEndpoint implements StorageEndpoint {
                 0,
                 id);
 
-        this.atomicFlush(tx, true);
+        issue(r, id, tx);
+        if(readAhead != null) {
+            /* behind the read that was asked for */
+            readAhead.fill(remoteMr.getLkey(), remoteMr.getAddr() + remoteOffset + len);
+        }
         return r;
     }
 
+    /**
+     * Fills in the segment list of a vectored request and returns the total number of bytes.
+     */
+    private static int collectSegments(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets,
+                                       ByteBuffer[] views, int[] stags, long[] addresses, int[] lengths) throws IOException {
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            views[i] = buffers[i].getByteBuffer();
+            stags[i] = remoteMrs[i].getLkey();
+            addresses[i] = remoteMrs[i].getAddr() + remoteOffsets[i];
+            lengths[i] = views[i].remaining();
+            total += lengths[i];
+        }
+        if(total > Integer.MAX_VALUE) {
+            throw new IOException("Vectored operation of " + total + " bytes is too large");
+        }
+        return (int) total;
+    }
+
+    private static void checkSegments(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException {
+        if(buffers.length == 0 || buffers.length != remoteMrs.length || buffers.length != remoteOffsets.length) {
+            throw new IOException("Vectored operation needs as many buffers as remote locations, got " +
+                    buffers.length + "/" + remoteMrs.length + "/" + remoteOffsets.length);
+        }
+        if(buffers.length > RdmaMsgTx.MAX_SEGMENTS) {
+            throw new IOException("Vectored operation with " + buffers.length + " segments, at most " +
+                    RdmaMsgTx.MAX_SEGMENTS + " are allowed");
+        }
+    }
+
+    /* vectored and streamed IO depend on what the datanode has agreed to, which takes one round trip */
+    private WireFeatures agreed() throws IOException, InterruptedException {
+        connected.await();
+        if(!connected.isSuccess()) {
+            throw new IOException("Connecting to storage node failed", connected.cause());
+        }
+        return this.features;
+    }
+
+    /* one plain read or write per segment, for datanodes older than vectored IO */
+    private StorageFuture perSegment(boolean write, CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets)
+            throws IOException, InterruptedException {
+        StorageFuture[] parts = new StorageFuture[buffers.length];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            total += buffers[i].getByteBuffer().remaining();
+            parts[i] = write ? write(buffers[i], remoteMrs[i], remoteOffsets[i]) :
+                    read(buffers[i], remoteMrs[i], remoteOffsets[i]);
+        }
+        return new NettyMultiResult(parts, (int) total);
+    }
+
+    final public StorageFuture writev(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException {
+        checkSegments(buffers, remoteMrs, remoteOffsets);
+        flushStaged();
+        if(readAhead != null) {
+            for (BlockInfo remoteMr : remoteMrs) {
+                readAhead.invalidate(remoteMr.getLkey());
+            }
+        }
+        if(!agreed().has(MessageTypes.FEATURE_VECTORED)) {
+            return perSegment(true, buffers, remoteMrs, remoteOffsets);
+        }
+        NettyIOResult rejected = admit();
+        if(rejected != null) {
+            return rejected;
+        }
+        int count = buffers.length;
+        ByteBuffer[] views = new ByteBuffer[count];
+        int[] stags = new int[count];
+        long[] addresses = new long[count];
+        int[] lengths = new int[count];
+        int total = collectSegments(buffers, remoteMrs, remoteOffsets, views, stags, addresses, lengths);
+
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        NettyIOResult w = new NettyIOResult();
+        long id = track(w, total);
+        w.initWritev(id, total);
+        /* the segment count travels in the stag field */
+        tx.initHeader(0, total, count, MessageTypes.WRITEV_REQ, 0, id);
+        tx.setSegments(stags, addresses, lengths);
+        /* all buffers back to back after the segment list, without copying them */
+        tx.ownTxPayload(Unpooled.wrappedBuffer(views));
+        if(prepare(w, id, tx)) {
+            issue(w, id, tx);
+        }
+        return w;
+    }
+
+    final public StorageFuture readv(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException {
+        checkSegments(buffers, remoteMrs, remoteOffsets);
+        flushStaged();
+        if(!agreed().has(MessageTypes.FEATURE_VECTORED)) {
+            return perSegment(false, buffers, remoteMrs, remoteOffsets);
+        }
+        NettyIOResult rejected = admit();
+        if(rejected != null) {
+            return rejected;
+        }
+        int count = buffers.length;
+        ByteBuffer[] views = new ByteBuffer[count];
+        int[] stags = new int[count];
+        long[] addresses = new long[count];
+        int[] lengths = new int[count];
+        int total = collectSegments(buffers, remoteMrs, remoteOffsets, views, stags, addresses, lengths);
+
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        NettyIOResult r = new NettyIOResult();
+        long id = track(r, total);
+        r.initReadv(id, total, views);
+        tx.initHeader(0, total, count, MessageTypes.READV_REQ, 0, id);
+        tx.setSegments(stags, addresses, lengths);
+        issue(r, id, tx);
+        return r;
+    }
+
+    /**
+     * Prepares a streamed read of the range, no request is sent before somebody subscribes.
+     */
+    final public NettyReadStream readStream(BlockInfo remoteMr, long remoteOffset, int length) throws IOException {
+        if(length < 0) {
+            throw new IOException("Invalid stream length " + length);
+        }
+        try {
+            flushStaged();
+            if(!agreed().has(MessageTypes.FEATURE_STREAMS)) {
+                throw new IOException("Storage node " + noAtomicClientChannel.remoteAddress() +
+                        " does not support streamed reads, " + features);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return new NettyReadStream(this, streams, remoteMr.getAddr() + remoteOffset, remoteMr.getLkey(), length, streamChunk);
+    }
+
+    final void sendStreamRequest(long cookie, long address, int stag, int length, int chunkSize, int initialDemand){
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(address, RdmaMsgTx.STREAM_REQ_SIZE, stag, MessageTypes.READ_STREAM_REQ, 0, cookie);
+        ByteBuf params = PooledByteBufAllocator.DEFAULT.directBuffer(RdmaMsgTx.STREAM_REQ_SIZE, RdmaMsgTx.STREAM_REQ_SIZE);
+        params.writeInt(length);
+        params.writeInt(chunkSize);
+        params.writeInt(initialDemand);
+        tx.ownTxPayload(params);
+        submit(tx);
+    }
+
+    /* demand and cancel are just a header, for demand opLength is the number of chunks */
+    final void sendStreamControl(int type, long cookie, int n){
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0, n, 0, type, 0, cookie);
+        submit(tx);
+    }
+
     final public void close() throws IOException, InterruptedException{
+        /* goes out ahead of the close, the staged writes fail rather than wait forever */
+        flushStaged();
+        if(readAhead != null) {
+            CrailNettyUtils.getLogger().debug("Closing " + this + ", " + readAhead.stats());
+            readAhead.clear();
+        }
         /* don't care about the sync */
         synchronized (this) {
             noAtomicClientChannel.close();
         }
     }
 
+    /* a connection that is still being established counts as active */
+    final public boolean isActive(){
+        return !connected.isDone() || noAtomicClientChannel.isActive();
+    }
+
     final public boolean isLocal(){
         return false;
     }
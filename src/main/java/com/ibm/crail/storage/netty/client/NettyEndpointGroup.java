@@ -24,97 +24,195 @@ package com.ibm.crail.storage.netty.client;
 
 import com.ibm.crail.storage.StorageEndpoint;
 import com.ibm.crail.storage.netty.CrailNettyUtils;
-import com.ibm.crail.storage.netty.rpc.RdmaDecoderRx;
+import com.ibm.crail.storage.netty.NettyConstants;
+import com.ibm.crail.storage.netty.NettyTransport;
+import com.ibm.crail.storage.netty.rpc.CompressionStats;
+import com.ibm.crail.storage.netty.rpc.RdmaEncoderTx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
 
 public class NettyEndpointGroup {
     private static final Logger LOG = CrailNettyUtils.getLogger();
     private EventLoopGroup workerGroup;
     private Bootstrap boot;
-    private ArrayList<NettyEndpoint> activeClients;
-
-    private ConcurrentHashMap<Long, NettyIOResult> inFlightOps;
-    private AtomicLong slot;
+    /* one entry per datanode, shared by all handles to it */
+    private ConcurrentHashMap<InetSocketAddress, CachedEndpoint> endpoints;
+    /* deadlines of the operations in flight, coarse ticks are plenty */
+    private Timer timer;
 
     public NettyEndpointGroup(){
-        workerGroup = new NioEventLoopGroup();
+        NettyTransport transport = NettyTransport.select();
+        workerGroup = transport.newEventLoopGroup();
         boot = new Bootstrap();
         boot.group(workerGroup);
-        boot.channel(NioSocketChannel.class);
+        boot.channel(transport.socketChannel());
         boot.option(ChannelOption.SO_KEEPALIVE, true);
-        final NettyEndpointGroup thisGroup = this;
-        boot.handler(new ChannelInitializer<SocketChannel>() {
-            @Override
-            public void initChannel(SocketChannel ch) throws Exception {
-                /* outgoing pipeline */
-                //ch.pipeline().addLast(new RdmaEncoderTx());
-                /* incoming pipeline */
-                ch.pipeline().addLast(new RdmaDecoderRx(), new IncomingResponseHandler(thisGroup));
-            }
-        });
-        activeClients = new ArrayList<NettyEndpoint>();
-        slot = new AtomicLong(0);
-        inFlightOps = new ConcurrentHashMap<Long, NettyIOResult>();
+        /* high first, netty refuses a low watermark above the current high one */
+        boot.option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, NettyConstants.get().getWatermarkHigh());
+        boot.option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, NettyConstants.get().getWatermarkLow());
+        transport.configure(boot);
+        endpoints = new ConcurrentHashMap<InetSocketAddress, CachedEndpoint>();
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+    }
+
+    final public Timer getTimer(){
+        return timer;
     }
 
-    final public long getNextSlot(){
-        return slot.incrementAndGet();
+    final long getIdleTimeout(){
+        return NettyConstants.get().getIdleTimeout();
     }
 
-    final public void insertNewInflight(long slot, NettyIOResult ops){
-        inFlightOps.put(slot, ops);
+    final boolean isStripeRoundRobin(){
+        return NettyConstants.get().isStripeRoundRobin();
     }
 
-    final public NettyIOResult getAndRemoveInflight(long slot){
-        return  inFlightOps.remove(slot);
+    final boolean isCached(InetSocketAddress address, CachedEndpoint entry){
+        return endpoints.get(address) == entry;
     }
 
+    final void uncache(InetSocketAddress address, CachedEndpoint entry){
+        endpoints.remove(address, entry);
+    }
+
+    /**
+     * Hands out a handle on the connections to the datanode, only the first handle to a datanode
+     * connects. Closing the handle gives the connections back to the cache.
+     */
     public StorageEndpoint createEndpoint(final InetSocketAddress inetSocketAddress) throws IOException {
-        NettyEndpoint ep = null;
-        try {
-            /* here we got the client channel and we trigger write on it */
-            Channel clientChannel = boot.connect(inetSocketAddress.getAddress(),
-                    inetSocketAddress.getPort()).addListener(new GenericFutureListener<Future<? super Void>>() {
-                public void operationComplete(Future<? super Void> future) throws Exception {
-                    LOG.debug("StorageNode connection established to : " + inetSocketAddress);
+        for(;;) {
+            CachedEndpoint entry = endpoints.get(inetSocketAddress);
+            if(entry == null) {
+                CachedEndpoint fresh = new CachedEndpoint(this, inetSocketAddress);
+                entry = endpoints.putIfAbsent(inetSocketAddress, fresh);
+                if(entry == null) {
+                    entry = fresh;
                 }
-            }).sync().channel();
-            ep = new NettyEndpoint(this, clientChannel);
-            activeClients.add(ep);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            }
+            if(!entry.acquire()) {
+                /* lost the race against the idle eviction */
+                endpoints.remove(inetSocketAddress, entry);
+                continue;
+            }
+            NettyDataEndpoint ep;
+            try {
+                ep = entry.endpoint();
+            } catch (IOException e) {
+                endpoints.remove(inetSocketAddress, entry);
+                entry.release();
+                throw e;
+            }
+            if(!entry.isActive()) {
+                LOG.info("Dropping dead connection(s) to StorageNode " + inetSocketAddress + " from the cache");
+                endpoints.remove(inetSocketAddress, entry);
+                entry.release();
+                continue;
+            }
+            return new SharedEndpoint(entry, ep);
+        }
+    }
+
+    /**
+     * Connects to all the datanodes in parallel and keeps the connections in the cache, so the
+     * first IO to each of them does not pay for the handshake. Nothing here waits for a connection.
+     *
+     * @param addresses The datanodes to connect to.
+     */
+    public void prewarm(List<InetSocketAddress> addresses) throws IOException {
+        for (InetSocketAddress address : addresses) {
+            try {
+                /* the cache keeps the connections for the idle timeout */
+                createEndpoint(address).close();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        LOG.info("Pre-warming connections to " + addresses.size() + " StorageNodes");
+    }
+
+    /* one channel lands on one event loop, spread the datanode over several of them */
+    final NettyEndpoint[] connectStripes(InetSocketAddress inetSocketAddress) throws IOException {
+        NettyEndpoint[] stripes = new NettyEndpoint[NettyConstants.get().getConnections()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = connect(inetSocketAddress);
         }
-        return ep;
+        return stripes;
+    }
+
+    /* returns right away, requests are queued on the endpoint until the handshake is over */
+    private NettyEndpoint connect(final InetSocketAddress inetSocketAddress) throws IOException {
+        /* every connection tracks its own operations in flight */
+        final InflightTable inflight = new InflightTable(NettyConstants.get().getQueueDepth());
+        final StreamTable streams = new StreamTable();
+        final WriteGate gate = new WriteGate(NettyConstants.get().getWatermarkHigh(), NettyConstants.get().isBackpressureReject());
+        final WireFeatures features = new WireFeatures(NettyConstants.get().isCompressionEnabled(),
+                NettyConstants.get().isChecksumEnabled(), NettyConstants.get().isCompactHeader());
+        /* completed from the event loop of the channel, the endpoint hops back onto it to drain */
+        final Promise<Void> handshake = new DefaultPromise<Void>(GlobalEventExecutor.INSTANCE);
+        /* one connection, one encoder. The endpoint has payloads prepared with it before they reach the event loop */
+        final RdmaEncoderTx encoder = new RdmaEncoderTx(features, NettyConstants.get().getCompressionThreshold());
+        Bootstrap connBoot = boot.clone();
+        connBoot.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                /* outgoing pipeline */
+                ch.pipeline().addLast(encoder);
+                /* incoming pipeline */
+                ch.pipeline().addLast(new StreamingResponseDecoder(inflight, features),
+                        new IncomingResponseHandler(inflight, streams, gate, features, handshake,
+                                NettyConstants.get().getHandshakeTimeout()));
+            }
+        });
+        ChannelFuture connectFuture = connBoot.connect(inetSocketAddress.getAddress(),
+                inetSocketAddress.getPort()).addListener(new GenericFutureListener<Future<? super Void>>() {
+            public void operationComplete(Future<? super Void> future) throws Exception {
+                if(future.isSuccess()) {
+                    LOG.debug("StorageNode connection established to : " + inetSocketAddress);
+                } else {
+                    LOG.error("StorageNode connection to " + inetSocketAddress + " failed: " + future.cause());
+                    handshake.tryFailure(future.cause());
+                }
+            }
+        });
+        return new NettyEndpoint(this, connectFuture, handshake, inflight, streams, gate, features, encoder);
     }
 
     public void showCurrentClients(){
-        for (NettyEndpoint ep : activeClients) {
-            LOG.info(ep.toString());
+        for (CachedEndpoint entry : endpoints.values()) {
+            LOG.info(entry.toString());
         }
     }
 
     public void close() throws InterruptedException, IOException {
-        for (NettyEndpoint ep : activeClients) {
-            ep.close();
+        for (CachedEndpoint entry : endpoints.values()) {
+            entry.closeStripes();
+        }
+        endpoints.clear();
+        if(NettyConstants.get().isCompressionEnabled()) {
+            LOG.info("Payload compression " + CompressionStats.get());
         }
         /* don't care about the future type */
         workerGroup.shutdownGracefully();
+        timer.stop();
     }
 
     final public String toString() {
@@ -24,34 +24,61 @@ package com.ibm.crail.storage.netty.client;
 
 import com.ibm.crail.storage.StorageFuture;
 import com.ibm.crail.storage.StorageResult;
+import com.ibm.crail.storage.netty.CompletionSignal;
 import com.ibm.crail.storage.netty.rpc.MessageTypes;
 import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-public class NettyIOResult implements StorageFuture, StorageResult {
+public class NettyIOResult implements StorageFuture, StorageResult, TimerTask {
     private int length;
-    private boolean finished;
+    private final CompletionSignal finished;
     private ByteBuffer dest;
+    private ByteBuffer[] dests;
     private int inError;
+    private Throwable failure;
     private long cookie;
     private int expectedType;
+    private InflightTable inflight;
+    private Timeout deadline;
+    private NettyEndpoint owner;
+    private int accounted;
+    /* write-behind: the small writes whose data this write carries, they complete with it */
+    private NettyIOResult[] members;
+    /* write-behind: where our data waits until it goes out, null once it has */
+    private volatile WriteBehind stagedIn;
+    /* run once on completion, guarded by this */
+    private Runnable listener;
+    private boolean completed;
 
     public NettyIOResult(){
         length = -1;
-        finished = false;
+        finished = new CompletionSignal();
         dest = null;
+        dests = null;
         inError = -1;
+        failure = null;
         expectedType = -1;
         cookie = -1;
+        inflight = null;
+        deadline = null;
+        owner = null;
+        accounted = 0;
+        members = null;
+        stagedIn = null;
+        listener = null;
+        completed = false;
     }
 
     final public String toString(){
         return " length: " + length +
-                " finished " + finished +
+                " finished " + finished.isDone() +
                 " dest " + dest +
                 " inError " + inError +
                 " cookie " + cookie +
@@ -70,31 +97,189 @@ public class NettyIOResult implements StorageFuture, StorageResult {
         _init(cookie, length, null);
         this.expectedType = MessageTypes.WRITE_RESP;
     }
+    /* a small write that has been copied into the staging buffer, it has no cookie of its own */
+    final void initStaged(int length, WriteBehind behind){
+        _init(-1, length, null);
+        this.expectedType = MessageTypes.WRITE_RESP;
+        this.stagedIn = behind;
+    }
+
+    /* the staged data is on its way, as part of one larger write */
+    final void unstage(){
+        this.stagedIn = null;
+    }
+
+    /* a read that is served from read-ahead, it has no cookie of its own */
+    final void initServed(int length){
+        _init(-1, length, null);
+        this.expectedType = MessageTypes.READ_RESP;
+    }
+
+    /* the write that carries the staged data of the members */
+    final void initWriteBehind(long cookie, int length, NettyIOResult[] members){
+        initWrite(cookie, length);
+        this.members = members;
+    }
+
     public void initRead(long cookie, int length, ByteBuffer buf){
         assert (buf != null);
         _init(cookie, length, buf);
         this.expectedType = MessageTypes.READ_RESP;
     }
 
+    /* the endpoint that accounts our bytes as in flight until we complete */
+    final void setOwner(NettyEndpoint owner, int bytes){
+        this.owner = owner;
+        this.accounted = bytes;
+    }
+
+    private void retire(){
+        if(deadline != null) {
+            deadline.cancel();
+        }
+        if(owner != null) {
+            owner.retire(accounted);
+        }
+    }
+
+    public void initWritev(long cookie, int length){
+        _init(cookie, length, null);
+        this.expectedType = MessageTypes.WRITEV_RESP;
+    }
+
+    public void initReadv(long cookie, int length, ByteBuffer[] bufs){
+        assert (bufs != null);
+        _init(cookie, length, null);
+        this.dests = new ByteBuffer[bufs.length];
+        for (int i = 0; i < bufs.length; i++) {
+            this.dests[i] = bufs[i].slice();
+        }
+        this.expectedType = MessageTypes.READV_RESP;
+    }
+
+    /**
+     * Arms a deadline for this operation. If no response has come by then, the operation is
+     * taken out of its in-flight table and failed with a TimeoutException.
+     */
+    final void armDeadline(io.netty.util.Timer timer, InflightTable table, long timeoutMs){
+        this.inflight = table;
+        this.deadline = timer.newTimeout(this, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /* the deadline has passed, unless the response wins the race for the slot. A read whose payload
+     * is being placed is out of the table already, and completes with its payload */
+    final public void run(Timeout timeout) throws Exception {
+        if(this.inflight.remove(this.cookie) == this) {
+            markFailed(new TimeoutException("No response within the deadline for " + this));
+        }
+    }
+
+    /* the read payload is decoded straight into this buffer */
+    final ByteBuffer getReadDestination(){
+        return this.dest;
+    }
+
+    /* the segments of a vectored read are decoded straight into these, in order */
+    final ByteBuffer[] getReadDestinations(){
+        return this.dests;
+    }
+
     public void markDone(RdmaMsgRx finishedMsg){
 
         assert this.cookie == finishedMsg.cookie();
         assert this.expectedType == finishedMsg.type();
-        if(finishedMsg.type() == MessageTypes.READ_RESP) {
-            /* this was a read completion, we have to copy out */
-            finishedMsg.copyAndReleaseRxPayload(this.dest);
-        }
+        /* for reads, the payload is already in dest - placed by the StreamingResponseDecoder */
 
         if(finishedMsg.status() != 0) {
             inError = 1;
         } else {
             inError = 0;
+            if(this.dest != null) {
+                /* as the copy used to do, dest is our slice, the position of the caller's buffer never moves */
+                this.dest.position(this.dest.position() + finishedMsg.opLength());
+            }
+        }
+
+        retire();
+        if(members != null) {
+            for (NettyIOResult member : members) {
+                if(inError == 0) {
+                    member.markDoneLocally();
+                } else {
+                    member.markFailed(new IOException("Storage node failed the write-behind of " + this));
+                }
+            }
+        }
+        /* mark us done, wakes up the waiter only if it has parked */
+        finished.signal();
+        fireListener();
+    }
+
+    /* completes an operation that had no message of its own on the wire, e.g. a staged write */
+    final void markDoneLocally(){
+        this.inError = 0;
+        finished.signal();
+        fireListener();
+    }
+
+    /**
+     * Runs the task once this operation completes, right away if it already has. The task runs
+     * on the thread that completes the operation, usually the event loop, and has to be short.
+     */
+    final void onCompletion(Runnable task){
+        synchronized (this) {
+            if(!completed) {
+                assert listener == null;
+                listener = task;
+                return;
+            }
         }
+        task.run();
+    }
 
-        /* mark us done */
+    private void fireListener(){
+        Runnable task;
         synchronized (this) {
-            finished = true;
-            this.notifyAll();
+            completed = true;
+            task = listener;
+            listener = null;
+        }
+        if(task != null) {
+            task.run();
+        }
+    }
+
+    /* why the operation failed, null if it succeeded. Only valid once done */
+    final Throwable failureCause(){
+        if(inError == 0) {
+            return null;
+        }
+        return (failure != null) ? failure : new IOException("Storage node failed " + this);
+    }
+
+    /**
+     * Completes the operation locally without a response, e.g. when the connection is lost.
+     *
+     * @param cause What get() reports as the cause of the ExecutionException.
+     */
+    public void markFailed(Throwable cause){
+        retire();
+        this.failure = cause;
+        this.inError = 1;
+        if(members != null) {
+            for (NettyIOResult member : members) {
+                member.markFailed(cause);
+            }
+        }
+        finished.signal();
+        fireListener();
+    }
+
+    /* the caller syncs on a staged write, it should not have to sit out the deadline */
+    private void flushStaged() throws InterruptedException {
+        WriteBehind behind = this.stagedIn;
+        if(behind != null) {
+            behind.flush();
         }
     }
 
@@ -112,36 +297,30 @@ public class NettyIOResult implements StorageFuture, StorageResult {
     }
 
     final public boolean isDone() {
-        return finished;
+        return finished.isDone();
     }
 
     final public StorageResult get() throws InterruptedException, ExecutionException {
-        synchronized (this) {
-            if (!finished) {
-                // then we have to block until finished is marked set
-                this.wait();
-            }
-        }
+        flushStaged();
+        /* spins for a while, then blocks until finished is marked set */
+        finished.await(-1);
+        if(failure != null)
+            throw new ExecutionException(failure);
         if(inError != 0)
             throw new InternalError(" The data IO operation has error ");
 
-        if(!finished)
-            throw new InterruptedException("Execution interrupted, as the RPC is not finished");
-
         return this;
     }
 
     final public StorageResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        flushStaged();
         /* otherwise we wait */
-        synchronized (this) {
-            if (!finished) {
-                // then we have to block until finished is marked set
-                this.wait(unit.toMillis(timeout));
-            }
-        }
-        if(!finished)
+        if(!finished.await(unit.toNanos(timeout)))
             throw new TimeoutException("Response timeout happened for data transfer");
 
+        if(failure != null)
+            throw new ExecutionException(failure);
+
         if(inError != 0)
             throw new InternalError(" The data IO operation has error ");
 
@@ -0,0 +1,90 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.storage.StorageFuture;
+import com.ibm.crail.storage.StorageResult;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A vectored operation done as one plain read or write per segment, for datanodes that
+ * have not agreed on vectored IO in the handshake. Done once all of its parts are done.
+ */
+public class NettyMultiResult implements StorageFuture, StorageResult {
+    private final StorageFuture[] parts;
+    private final int length;
+
+    public NettyMultiResult(StorageFuture[] parts, int length){
+        this.parts = parts;
+        this.length = length;
+    }
+
+    final public String toString(){
+        return " length: " + length + " parts: " + parts.length + " finished " + isDone();
+    }
+
+    final public int getLen() {
+        assert (isDone());
+        return this.length;
+    }
+
+    final public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    final public boolean isCancelled() {
+        return false;
+    }
+
+    final public boolean isDone() {
+        for (StorageFuture part : parts) {
+            if(!part.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    final public StorageResult get() throws InterruptedException, ExecutionException {
+        /* the first failed part fails the whole operation */
+        for (StorageFuture part : parts) {
+            part.get();
+        }
+        return this;
+    }
+
+    final public StorageResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (StorageFuture part : parts) {
+            part.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return this;
+    }
+
+    final public boolean isSynchronous() {
+        return false;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A streamed read of a range, modelled after a Reactive Streams publisher of chunks. Nothing is
+ * requested from the datanode before subscribe(), and after that the datanode sends only as many
+ * chunks as the subscriber has asked for. The range can be larger than a single read can carry.
+ */
+public class NettyReadStream implements ChunkSubscription {
+    private final NettyEndpoint endpoint;
+    private final StreamTable streams;
+    private final long address;
+    private final int stag;
+    private final int length;
+    private final int chunkSize;
+    private final AtomicBoolean terminated;
+    private ChunkSubscriber subscriber;
+    /* demand asked for before the stream request went out, it travels with the request */
+    private boolean started;
+    private long pendingDemand;
+    private long cookie;
+
+    NettyReadStream(NettyEndpoint endpoint, StreamTable streams, long address, int stag, int length, int chunkSize){
+        this.endpoint = endpoint;
+        this.streams = streams;
+        this.address = address;
+        this.stag = stag;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.terminated = new AtomicBoolean(false);
+        this.subscriber = null;
+        this.started = false;
+        this.pendingDemand = 0;
+        this.cookie = -1;
+    }
+
+    /**
+     * Starts the stream. A stream can be subscribed to only once.
+     *
+     * @param s The subscriber that gets the chunks, in order.
+     */
+    public void subscribe(ChunkSubscriber s) {
+        synchronized (this) {
+            if(this.subscriber != null) {
+                throw new IllegalStateException("Stream " + this + " has a subscriber already");
+            }
+            this.subscriber = s;
+        }
+        /* the subscriber can ask for data right away, we send that along with the request */
+        s.onSubscribe(this);
+        long initial, rest;
+        synchronized (this) {
+            if(terminated.get()) {
+                return;
+            }
+            this.cookie = streams.register(this);
+            this.started = true;
+            initial = Math.min(pendingDemand, Integer.MAX_VALUE);
+            rest = pendingDemand - initial;
+            pendingDemand = 0;
+        }
+        endpoint.sendStreamRequest(cookie, address, stag, length, chunkSize, (int) initial);
+        if(rest > 0) {
+            sendDemand(rest);
+        }
+        /* the connection can be gone before we were registered */
+        if(!endpoint.isActive() && streams.remove(cookie) == this) {
+            onError(new IOException("Connection lost to storage node"));
+        }
+    }
+
+    private void sendDemand(long n){
+        while (n > 0) {
+            int now = (int) Math.min(n, Integer.MAX_VALUE);
+            endpoint.sendStreamControl(MessageTypes.STREAM_DEMAND, cookie, now);
+            n -= now;
+        }
+    }
+
+    final public void request(long n) {
+        if(n <= 0) {
+            if(terminated.compareAndSet(false, true)) {
+                abort();
+                subscriber.onError(new IllegalArgumentException("Demand has to be positive, got " + n));
+            }
+            return;
+        }
+        synchronized (this) {
+            if(terminated.get()) {
+                return;
+            }
+            if(!started) {
+                pendingDemand = (pendingDemand + n < 0) ? Long.MAX_VALUE : pendingDemand + n;
+                return;
+            }
+        }
+        sendDemand(n);
+    }
+
+    final public void cancel() {
+        if(terminated.compareAndSet(false, true)) {
+            abort();
+        }
+    }
+
+    /* tells the datanode to stop, if it has heard of us at all */
+    private void abort(){
+        synchronized (this) {
+            if(!started) {
+                return;
+            }
+        }
+        streams.remove(cookie);
+        endpoint.sendStreamControl(MessageTypes.STREAM_CANCEL, cookie, 0);
+    }
+
+    /* the methods below are called from the event loop, in the order the frames arrive */
+    final void onData(ByteBuf chunk){
+        if(terminated.get()) {
+            chunk.release();
+            return;
+        }
+        subscriber.onNext(chunk);
+    }
+
+    final void onComplete(){
+        if(terminated.compareAndSet(false, true)) {
+            subscriber.onComplete();
+        }
+    }
+
+    final void onError(Throwable cause){
+        if(terminated.compareAndSet(false, true)) {
+            subscriber.onError(cause);
+        }
+    }
+
+    final public int getLength(){
+        return this.length;
+    }
+
+    final public String toString(){
+        return "stream cookie: " + cookie + " addr: 0x" + Long.toHexString(address) + " stag: " + stag +
+                " length: " + length + " chunk: " + chunkSize + " terminated: " + terminated.get();
+    }
+}
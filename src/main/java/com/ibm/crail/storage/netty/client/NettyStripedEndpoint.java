@@ -0,0 +1,154 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.CrailBuffer;
+import com.ibm.crail.metadata.BlockInfo;
+import com.ibm.crail.storage.StorageFuture;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the requests to one datanode over several connections. Every request stays on
+ * the connection it was issued on, so its completion comes back through that connection's
+ * own in-flight table.
+ */
+public class NettyStripedEndpoint implements NettyDataEndpoint {
+    private final NettyEndpoint[] stripes;
+    private final boolean roundRobin;
+    private final AtomicInteger next;
+
+    public NettyStripedEndpoint(NettyEndpoint[] stripes, boolean roundRobin){
+        this.stripes = stripes;
+        this.roundRobin = roundRobin;
+        this.next = new AtomicInteger(0);
+    }
+
+    private NettyEndpoint pick(){
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % stripes.length;
+        if(roundRobin) {
+            return stripes[start];
+        }
+        /* least bytes in flight, ties are broken by the rotating start */
+        NettyEndpoint best = stripes[start];
+        long bestBytes = best.getPendingBytes();
+        for (int i = 1; i < stripes.length && bestBytes > 0; i++) {
+            NettyEndpoint ep = stripes[(start + i) % stripes.length];
+            long bytes = ep.getPendingBytes();
+            if(bytes < bestBytes) {
+                best = ep;
+                bestBytes = bytes;
+            }
+        }
+        return best;
+    }
+
+    /* every stripe reads ahead on its own, a write on any of them makes what the others hold of the block stale */
+    private void invalidateRead(BlockInfo remoteMr){
+        for (NettyEndpoint ep : stripes) {
+            ep.invalidateRead(remoteMr);
+        }
+    }
+
+    final public StorageFuture write(CrailBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException, InterruptedException {
+        invalidateRead(remoteMr);
+        /* a sequential writer stays on the stripe that has its previous writes staged */
+        for (NettyEndpoint ep : stripes) {
+            if(ep.continuesStaged(remoteMr, remoteOffset)) {
+                return ep.write(buffer, remoteMr, remoteOffset);
+            }
+        }
+        return pick().write(buffer, remoteMr, remoteOffset);
+    }
+
+    /* every stripe flushes only its own staged writes, what comes next may go out on any of them */
+    private void flushStaged() throws InterruptedException {
+        for (NettyEndpoint ep : stripes) {
+            ep.flushStaged();
+        }
+    }
+
+    /* a read of a block with staged writes goes out on their stripe, the datanode serves it after them */
+    private NettyEndpoint holdingStaged(BlockInfo remoteMr){
+        for (NettyEndpoint ep : stripes) {
+            if(ep.holdsStaged(remoteMr)) {
+                return ep;
+            }
+        }
+        return null;
+    }
+
+    final public StorageFuture read(CrailBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException, InterruptedException {
+        NettyEndpoint target = holdingStaged(remoteMr);
+        /* a sequential reader stays on the stripe that reads ahead for it */
+        for (int i = 0; i < stripes.length && target == null; i++) {
+            if(stripes[i].continuesRead(remoteMr, remoteOffset)) {
+                target = stripes[i];
+            }
+        }
+        flushStaged();
+        return (target != null ? target : pick()).read(buffer, remoteMr, remoteOffset);
+    }
+
+    final public StorageFuture writev(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException {
+        for (BlockInfo remoteMr : remoteMrs) {
+            invalidateRead(remoteMr);
+        }
+        flushStaged();
+        return pick().writev(buffers, remoteMrs, remoteOffsets);
+    }
+
+    final public StorageFuture readv(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException {
+        flushStaged();
+        return pick().readv(buffers, remoteMrs, remoteOffsets);
+    }
+
+    final public NettyReadStream readStream(BlockInfo remoteMr, long remoteOffset, int length) throws IOException {
+        NettyEndpoint target = holdingStaged(remoteMr);
+        try {
+            flushStaged();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return (target != null ? target : pick()).readStream(remoteMr, remoteOffset, length);
+    }
+
+    final public void close() throws IOException, InterruptedException {
+        for (NettyEndpoint ep : stripes) {
+            ep.close();
+        }
+    }
+
+    final public boolean isLocal() {
+        return false;
+    }
+
+    final public String toString() {
+        StringBuilder sb = new StringBuilder("striped(" + stripes.length + "):");
+        for (NettyEndpoint ep : stripes) {
+            sb.append(" ").append(ep.toString());
+        }
+        return sb.toString();
+    }
+}
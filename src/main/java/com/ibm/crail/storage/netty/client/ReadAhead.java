@@ -0,0 +1,274 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead for sequential readers of one connection. Reads are followed per stream, which is
+ * keyed by the stag and the address its next read would start at, so that several readers of
+ * the same block each have their own: once a read starts where a previous one on the same stag
+ * ended, the next ranges of the same size are read speculatively into pooled buffers, and later
+ * reads are served from there. The number
+ * of ranges read ahead grows by one with every hit and is halved whenever what was read ahead
+ * goes unused. All buffers of a connection together stay below a byte limit.
+ */
+class ReadAhead {
+    /* the streams followed per connection, the least recently read one makes room */
+    private static final int STREAMS = 16;
+
+    private static final class Prefetch {
+        final long address;
+        final int length;
+        final ByteBuf buffer;
+        final NettyIOResult op;
+
+        Prefetch(long address, int length, ByteBuf buffer, NettyIOResult op){
+            this.address = address;
+            this.length = length;
+            this.buffer = buffer;
+            this.op = op;
+        }
+    }
+
+    /* a stream is found by where its reader would read next */
+    private static final class Key {
+        final int stag;
+        final long next;
+
+        Key(int stag, long next){
+            this.stag = stag;
+            this.next = next;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.stag == other.stag && this.next == other.next;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.stag + (int) (this.next ^ (this.next >>> 32));
+        }
+    }
+
+    private static final class Stream {
+        int stag;
+        /* where a sequential read would start */
+        long next;
+        int length;
+        /* the end of the block, nothing is read ahead beyond it */
+        long limit;
+        /* number of ranges to keep read ahead, 0 until the stream is found to be sequential */
+        int window;
+        final ArrayDeque<Prefetch> ahead = new ArrayDeque<Prefetch>();
+    }
+
+    private final NettyEndpoint endpoint;
+    private final long capacity;
+    private final int maxWindow;
+    /* held by prefetched ranges, until they are consumed or dropped and their read has completed */
+    private final AtomicLong bytes;
+    private final LinkedHashMap<Key, Stream> streams;
+    private long hits;
+    private long misses;
+
+    ReadAhead(NettyEndpoint endpoint, long capacity, int maxWindow){
+        this.endpoint = endpoint;
+        this.capacity = capacity;
+        this.maxWindow = maxWindow;
+        this.bytes = new AtomicLong(0);
+        this.streams = new LinkedHashMap<Key, Stream>(STREAMS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Stream> eldest) {
+                if(size() <= STREAMS) {
+                    return false;
+                }
+                /* its reader has gone elsewhere or stopped, what it had read ahead is wasted */
+                if(!eldest.getValue().ahead.isEmpty()) {
+                    misses++;
+                }
+                dropAll(eldest.getValue());
+                return true;
+            }
+        };
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /* the buffer goes back to the pool once nothing can write into it anymore */
+    private void drop(final Prefetch prefetch){
+        prefetch.op.onCompletion(new Runnable() {
+            public void run() {
+                prefetch.buffer.release();
+                bytes.addAndGet(-prefetch.length);
+            }
+        });
+    }
+
+    private void dropAll(Stream stream){
+        Prefetch prefetch;
+        while ((prefetch = stream.ahead.pollFirst()) != null) {
+            drop(prefetch);
+        }
+    }
+
+    /**
+     * Looks the read up among what has been read ahead, and notes it for the detection of
+     * sequential access.
+     *
+     * @param dst The destination of the read, from its position to its limit.
+     * @param limit The end of the block, as an address.
+     *
+     * @return a future that completes once the data is in dst, or null if the read has to go
+     * to the datanode
+     */
+    final synchronized NettyIOResult serve(ByteBuffer dst, int stag, long address, long limit){
+        int length = dst.remaining();
+        Stream stream = streams.remove(new Key(stag, address));
+        if(stream == null) {
+            /* a reader we have not seen before, or one that has jumped */
+            stream = new Stream();
+            stream.stag = stag;
+            stream.length = -1;
+        }
+        boolean sequential = (length == stream.length);
+        stream.next = address + length;
+        stream.length = length;
+        stream.limit = limit;
+        Stream replaced = streams.put(new Key(stag, stream.next), stream);
+        if(replaced != null) {
+            /* two readers have met, the one that got here last goes on */
+            dropAll(replaced);
+        }
+        Prefetch first = stream.ahead.peekFirst();
+        if(first != null && first.address == address && first.length == length) {
+            stream.ahead.pollFirst();
+            hits++;
+            /* read ahead was right, look further */
+            stream.window = Math.min(maxWindow, stream.window + 1);
+            return served(first, dst);
+        }
+        if(first != null) {
+            /* the reader has changed its read size, what was read ahead is wasted */
+            misses++;
+            dropAll(stream);
+            stream.window = stream.window / 2;
+        }
+        if(sequential && stream.window == 0) {
+            stream.window = 1;
+        } else if(!sequential) {
+            stream.window = 0;
+        }
+        return null;
+    }
+
+    private NettyIOResult served(final Prefetch prefetch, ByteBuffer dst){
+        final NettyIOResult result = new NettyIOResult();
+        result.initServed(prefetch.length);
+        final ByteBuffer target = dst.slice();
+        prefetch.op.onCompletion(new Runnable() {
+            public void run() {
+                Throwable cause = prefetch.op.failureCause();
+                if(cause == null) {
+                    prefetch.buffer.getBytes(0, target);
+                }
+                prefetch.buffer.release();
+                bytes.addAndGet(-prefetch.length);
+                if(cause == null) {
+                    result.markDoneLocally();
+                } else {
+                    result.markFailed(cause);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads ahead on the stream that continues at next, up to its window. Called after the read
+     * that was asked for has been issued, so that it goes out first. Never waits for the connection.
+     */
+    final synchronized void fill(int stag, long next){
+        Stream stream = streams.get(new Key(stag, next));
+        if(stream == null || stream.window == 0) {
+            return;
+        }
+        Prefetch last = stream.ahead.peekLast();
+        long address = (last == null) ? stream.next : last.address + last.length;
+        int length = stream.length;
+        while (stream.ahead.size() < stream.window && address + length <= stream.limit &&
+                bytes.get() + length <= capacity) {
+            ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+            NettyIOResult op = endpoint.prefetch(buffer.nioBuffer(0, length), stag, address, length);
+            if(op == null) {
+                /* the connection is at its queue depth, real reads go first */
+                buffer.release();
+                return;
+            }
+            bytes.addAndGet(length);
+            stream.ahead.addLast(new Prefetch(address, length, buffer, op));
+            address += length;
+        }
+    }
+
+    /* whether a read there would continue a stream this connection follows */
+    final synchronized boolean continues(int stag, long address){
+        return streams.containsKey(new Key(stag, address));
+    }
+
+    /* writes to the block, on any connection to the datanode, make what was read ahead of the stag stale */
+    final synchronized void invalidate(int stag){
+        Iterator<Stream> it = streams.values().iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            if(stream.stag == stag) {
+                it.remove();
+                dropAll(stream);
+            }
+        }
+    }
+
+    final synchronized void clear(){
+        for (Stream stream : streams.values()) {
+            dropAll(stream);
+        }
+        streams.clear();
+    }
+
+    final synchronized String stats(){
+        return "read-ahead hits " + hits + " misses " + misses + " holding " + bytes.get() + " bytes";
+    }
+}
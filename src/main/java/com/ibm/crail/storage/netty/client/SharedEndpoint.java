@@ -0,0 +1,81 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.CrailBuffer;
+import com.ibm.crail.metadata.BlockInfo;
+import com.ibm.crail.storage.StorageFuture;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle on a cached endpoint. Closing the handle only drops its reference, the connections
+ * are closed by the cache once nobody uses them anymore.
+ */
+public class SharedEndpoint implements NettyDataEndpoint {
+    private final CachedEndpoint entry;
+    private final NettyDataEndpoint endpoint;
+    private final AtomicBoolean closed;
+
+    SharedEndpoint(CachedEndpoint entry, NettyDataEndpoint endpoint){
+        this.entry = entry;
+        this.endpoint = endpoint;
+        this.closed = new AtomicBoolean(false);
+    }
+
+    final public StorageFuture write(CrailBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException, InterruptedException {
+        return endpoint.write(buffer, remoteMr, remoteOffset);
+    }
+
+    final public StorageFuture read(CrailBuffer buffer, BlockInfo remoteMr, long remoteOffset) throws IOException, InterruptedException {
+        return endpoint.read(buffer, remoteMr, remoteOffset);
+    }
+
+    final public StorageFuture writev(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException {
+        return endpoint.writev(buffers, remoteMrs, remoteOffsets);
+    }
+
+    final public StorageFuture readv(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException {
+        return endpoint.readv(buffers, remoteMrs, remoteOffsets);
+    }
+
+    final public NettyReadStream readStream(BlockInfo remoteMr, long remoteOffset, int length) throws IOException {
+        return endpoint.readStream(remoteMr, remoteOffset, length);
+    }
+
+    final public void close() throws IOException, InterruptedException {
+        /* a handle gives back its reference only once */
+        if(closed.compareAndSet(false, true)) {
+            entry.release();
+        }
+    }
+
+    final public boolean isLocal() {
+        return false;
+    }
+
+    final public String toString() {
+        return "shared " + endpoint;
+    }
+}
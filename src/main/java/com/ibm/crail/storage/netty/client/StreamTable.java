@@ -0,0 +1,67 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The streamed reads of one connection. Stream cookies are a namespace of their own, the
+ * frames of a stream never reach the InflightTable.
+ */
+public class StreamTable {
+    private final ConcurrentHashMap<Long, NettyReadStream> streams;
+    private final AtomicLong ids;
+
+    public StreamTable(){
+        this.streams = new ConcurrentHashMap<Long, NettyReadStream>();
+        this.ids = new AtomicLong(0);
+    }
+
+    final long register(NettyReadStream stream){
+        long cookie = ids.incrementAndGet();
+        streams.put(cookie, stream);
+        return cookie;
+    }
+
+    final NettyReadStream get(long cookie){
+        return streams.get(cookie);
+    }
+
+    final NettyReadStream remove(long cookie){
+        return streams.remove(cookie);
+    }
+
+    /* the connection is gone, every open stream ends with an error */
+    final int failAll(Throwable cause){
+        int failed = 0;
+        for (Long cookie : streams.keySet()) {
+            NettyReadStream stream = streams.remove(cookie);
+            if(stream != null) {
+                stream.onError(cause);
+                failed++;
+            }
+        }
+        return failed;
+    }
+}
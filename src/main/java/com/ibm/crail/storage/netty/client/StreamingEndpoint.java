@@ -0,0 +1,37 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.metadata.BlockInfo;
+import com.ibm.crail.storage.StorageEndpoint;
+
+import java.io.IOException;
+
+/**
+ * A storage endpoint that can stream a range of a block as a sequence of chunks, paced by
+ * the demand of the consumer, instead of delivering it as a whole.
+ */
+public interface StreamingEndpoint extends StorageEndpoint {
+
+    NettyReadStream readStream(BlockInfo remoteMr, long remoteOffset, int length) throws IOException;
+}
@@ -0,0 +1,102 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.storage.netty.CrailNettyUtils;
+import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import com.ibm.crail.storage.netty.rpc.RdmaDecoderRx;
+import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+
+/**
+ * Client side decoder that copies READ_RESP payloads directly into the buffer that was
+ * handed to NettyEndpoint.read(), chunk by chunk, as the bytes arrive from the socket.
+ * The operation is taken out of the in-flight table before the first byte is placed, so
+ * neither its deadline nor anybody else can complete it while its buffer is being written.
+ * It travels on with the message to IncomingResponseHandler.
+ */
+public class StreamingResponseDecoder extends RdmaDecoderRx {
+    private InflightTable inflight;
+
+    public StreamingResponseDecoder(InflightTable inflight, WireFeatures features){
+        super(features);
+        this.inflight = inflight;
+    }
+
+    /* owns the operation from here on, null if it is gone already (e.g. timed out) */
+    private NettyIOResult claim(RdmaMsgRx rxMsg){
+        NettyIOResult result = this.inflight.remove(rxMsg.cookie());
+        if(result != null) {
+            rxMsg.setOwner(result);
+        }
+        return result;
+    }
+
+    @Override
+    final protected ByteBuf payloadSink(RdmaMsgRx rxMsg) {
+        if(rxMsg.type() == MessageTypes.READV_RESP) {
+            NettyIOResult result = claim(rxMsg);
+            if(result == null || result.getReadDestinations() == null) {
+                CrailNettyUtils.getLogger().error("No pending vectored read for " + rxMsg + ", dropping the payload");
+                return DISCARD;
+            }
+            /* one view over all destination buffers, the payload is scattered as it arrives */
+            ByteBuf dst = Unpooled.wrappedBuffer(result.getReadDestinations());
+            dst.clear();
+            assert dst.writableBytes() >= rxMsg.opLength();
+            return dst;
+        }
+        if(rxMsg.type() == MessageTypes.STREAM_DATA && rxMsg.hasChecksum()) {
+            /* the chunk is handed to the reader as a buffer of its own, summed on its way there */
+            ByteBuf chunk = PooledByteBufAllocator.DEFAULT.directBuffer(rxMsg.opLength(), rxMsg.opLength());
+            rxMsg.fillRxPayload(chunk);
+            return chunk;
+        }
+        if(rxMsg.type() != MessageTypes.READ_RESP) {
+            return null;
+        }
+        NettyIOResult result = claim(rxMsg);
+        if(result == null || result.getReadDestination() == null) {
+            CrailNettyUtils.getLogger().error("No pending read for " + rxMsg + ", dropping the payload");
+            return DISCARD;
+        }
+        ByteBuf dst = Unpooled.wrappedBuffer(result.getReadDestination());
+        dst.clear();
+        assert dst.writableBytes() >= rxMsg.opLength();
+        return dst;
+    }
+
+    @Override
+    final protected void payloadAbandoned(RdmaMsgRx rxMsg) {
+        /* no longer in the table, so failAll() of the handler does not see it */
+        NettyIOResult result = (NettyIOResult) rxMsg.getOwner();
+        if(result != null) {
+            result.markFailed(new IOException("Connection lost while receiving the payload of " + rxMsg));
+        }
+    }
+}
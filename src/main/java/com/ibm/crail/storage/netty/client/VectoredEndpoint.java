@@ -0,0 +1,42 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.CrailBuffer;
+import com.ibm.crail.metadata.BlockInfo;
+import com.ibm.crail.storage.StorageEndpoint;
+import com.ibm.crail.storage.StorageFuture;
+
+import java.io.IOException;
+
+/**
+ * A storage endpoint that can move a batch of buffers from or to one datanode with a single
+ * request and a single response. Segment i goes between buffers[i] and remoteOffsets[i] in
+ * remoteMrs[i]; the returned future completes when all segments are done.
+ */
+public interface VectoredEndpoint extends StorageEndpoint {
+
+    StorageFuture writev(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException;
+
+    StorageFuture readv(CrailBuffer[] buffers, BlockInfo[] remoteMrs, long[] remoteOffsets) throws IOException, InterruptedException;
+}
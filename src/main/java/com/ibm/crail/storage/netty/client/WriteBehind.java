@@ -0,0 +1,294 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.storage.netty.CrailNettyUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind for small sequential writes of one connection. Writes that continue the staged
+ * range (same stag, next address) are copied into a staging buffer, which goes out as one
+ * WRITE_REQ once it is full, its deadline has passed, or somebody waits for one of the writes.
+ * Every staged write completes with the acknowledgement of the write that carried it.
+ *
+ * Batches go out in the order they were taken out of the staging buffer. One that finds a free
+ * in-flight slot is issued right there, under the lock. One that does not is queued, and waited
+ * for outside the lock by whoever sends or flushes next; everything taken out after it queues
+ * behind it. flush() returns only once all of them have been issued, so a read issued after it
+ * cannot overtake them.
+ */
+class WriteBehind implements TimerTask {
+    private final NettyEndpoint endpoint;
+    private final int capacity;
+    private final Timer timer;
+    private final long deadlineMs;
+    /* null while nothing is staged */
+    private ByteBuf staging;
+    private int stag;
+    private long start;
+    private long end;
+    private final ArrayList<NettyIOResult> members;
+    private Timeout deadline;
+    /* batches taken out while the connection was at its queue depth, oldest first */
+    private final ArrayDeque<Batch> waiting;
+    /* somebody waits for a slot for the oldest of them */
+    private boolean draining;
+
+    WriteBehind(NettyEndpoint endpoint, int capacity, Timer timer, long deadlineMs){
+        this.endpoint = endpoint;
+        this.capacity = capacity;
+        this.timer = timer;
+        this.deadlineMs = deadlineMs;
+        this.staging = null;
+        this.members = new ArrayList<NettyIOResult>();
+        this.deadline = null;
+        this.waiting = new ArrayDeque<Batch>();
+        this.draining = false;
+    }
+
+    /* larger writes gain nothing from being staged, they go out on their own */
+    final boolean accepts(int length){
+        return length < this.capacity;
+    }
+
+    /* whether a write at this location would be appended to what is staged */
+    final synchronized boolean continues(int stag, long address){
+        return this.staging != null && this.stag == stag && this.end == address;
+    }
+
+    /**
+     * Copies a small write into the staging buffer, sending out what is staged first if the
+     * write does not continue it. The caller can reuse its buffer as soon as this returns.
+     *
+     * @return the future of this write, done once the datanode has acknowledged it
+     */
+    final NettyIOResult stage(ByteBuffer src, int stag, long address) throws InterruptedException {
+        int length = src.remaining();
+        NettyIOResult member = new NettyIOResult();
+        synchronized (this) {
+            if(this.staging != null && (this.stag != stag || this.end != address || this.staging.writableBytes() < length)) {
+                detach();
+            }
+            if(this.staging == null) {
+                this.staging = PooledByteBufAllocator.DEFAULT.directBuffer(this.capacity, this.capacity);
+                this.stag = stag;
+                this.start = address;
+                this.end = address;
+                this.deadline = this.timer.newTimeout(this, this.deadlineMs, TimeUnit.MILLISECONDS);
+            }
+            this.staging.writeBytes(src.duplicate());
+            this.end += length;
+            member.initStaged(length, this);
+            this.members.add(member);
+            if(!this.staging.isWritable()) {
+                detach();
+            }
+        }
+        drain();
+        return member;
+    }
+
+    /**
+     * Sends out what is staged, if anything, and returns once everything staged so far has been
+     * issued. Except on the event loop of the connection, which must not wait for a slot.
+     */
+    final void flush() throws InterruptedException {
+        synchronized (this) {
+            detach();
+        }
+        if(inEventLoop()) {
+            drain();
+            return;
+        }
+        for (;;) {
+            drain();
+            synchronized (this) {
+                if(this.waiting.isEmpty()) {
+                    return;
+                }
+                /* unless the one waiting for a slot gave up, then we take over */
+                if(this.draining) {
+                    wait();
+                }
+            }
+        }
+    }
+
+    /* whether something is staged for this block */
+    final synchronized boolean holds(int stag){
+        return this.staging != null && this.stag == stag;
+    }
+
+    /* takes what is staged out, under the lock, and issues it unless it has to wait for a slot */
+    private void detach(){
+        if(this.staging == null) {
+            return;
+        }
+        this.deadline.cancel();
+        this.deadline = null;
+        NettyIOResult[] staged = this.members.toArray(new NettyIOResult[this.members.size()]);
+        this.members.clear();
+        for (NettyIOResult member : staged) {
+            member.unstage();
+        }
+        Batch batch = new Batch(this.staging, this.stag, this.start, staged);
+        this.staging = null;
+        if(this.waiting.isEmpty()) {
+            long id = reserve(batch);
+            if(id >= 0) {
+                issue(batch, id);
+                return;
+            }
+        }
+        this.waiting.add(batch);
+    }
+
+    /**
+     * Issues the batches that found no free slot, oldest first. Waits for the slots outside the
+     * lock, and blocks if the connection is at its queue depth, unless called on the event loop
+     * of the connection, which has to run the completions that free the slots. There the waiting
+     * is handed to another thread.
+     */
+    private void drain() throws InterruptedException {
+        synchronized (this) {
+            if(this.waiting.isEmpty() || this.draining) {
+                return;
+            }
+        }
+        if(inEventLoop()) {
+            handOff();
+            return;
+        }
+        for (;;) {
+            Batch batch;
+            synchronized (this) {
+                if(this.waiting.isEmpty() || this.draining) {
+                    return;
+                }
+                this.draining = true;
+                batch = this.waiting.peek();
+            }
+            long id;
+            try {
+                id = await(batch);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    this.draining = false;
+                    notifyAll();
+                }
+                /* the staged writes must not wait for the next flush that may never come */
+                handOff();
+                throw e;
+            }
+            synchronized (this) {
+                /* still the oldest, nothing taken out after it can have been issued yet */
+                issue(this.waiting.poll(), id);
+                this.draining = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void handOff(){
+        GlobalEventExecutor.INSTANCE.execute(new Runnable() {
+            public void run() {
+                try {
+                    drain();
+                } catch (InterruptedException e) {
+                    CrailNettyUtils.getLogger().error("Write-behind flush of " + endpoint + " was interrupted");
+                }
+            }
+        });
+    }
+
+    /* an in-flight slot for the batch, -1 if the connection is at its queue depth */
+    long reserve(Batch batch){
+        return this.endpoint.reserveStaged(batch.carrier, batch.payload.readableBytes());
+    }
+
+    /* an in-flight slot for the batch, waits for one to free up */
+    long await(Batch batch) throws InterruptedException {
+        return this.endpoint.awaitStaged(batch.carrier, batch.payload.readableBytes());
+    }
+
+    /* queues the batch for the wire, it cannot be overtaken by anything issued later */
+    void issue(Batch batch, long id){
+        this.endpoint.writeStaged(batch.carrier, id, batch.payload, batch.stag, batch.address, batch.members);
+    }
+
+    boolean inEventLoop(){
+        return this.endpoint.inEventLoop();
+    }
+
+    private void expire(Timeout timeout) throws InterruptedException {
+        synchronized (this) {
+            /* unless it has been sent out in the meantime, and something new is staged */
+            if(this.deadline == timeout) {
+                detach();
+            }
+        }
+        drain();
+    }
+
+    /* the deadline of what is staged has passed */
+    final public void run(final Timeout timeout) throws Exception {
+        /* the flush may wait for a free slot, which must not hold up the timer that fails timed out operations */
+        GlobalEventExecutor.INSTANCE.execute(new Runnable() {
+            public void run() {
+                try {
+                    expire(timeout);
+                } catch (InterruptedException e) {
+                    CrailNettyUtils.getLogger().error("Write-behind flush of " + endpoint + " was interrupted");
+                }
+            }
+        });
+    }
+
+    /* the staged data of several writes, on its way out as one */
+    static final class Batch {
+        /* the write that carries them */
+        final NettyIOResult carrier;
+        final ByteBuf payload;
+        final int stag;
+        final long address;
+        final NettyIOResult[] members;
+
+        Batch(ByteBuf payload, int stag, long address, NettyIOResult[] members){
+            this.carrier = new NettyIOResult();
+            this.payload = payload;
+            this.stag = stag;
+            this.address = address;
+            this.members = members;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the outbound data of one connection bounded. New operations are admitted only while the
+ * channel is writable (its outbound buffer is below the high watermark) and the submission queue
+ * does not hold more than the high watermark either. Otherwise callers wait, or are turned away.
+ */
+class WriteGate {
+    private final long highWatermark;
+    private final boolean reject;
+    /* bytes sitting in the submission queue, the channel does not know about them yet */
+    private final AtomicLong queued;
+    private volatile int waiters;
+
+    WriteGate(long highWatermark, boolean reject){
+        this.highWatermark = highWatermark;
+        this.reject = reject;
+        this.queued = new AtomicLong(0);
+        this.waiters = 0;
+    }
+
+    private boolean open(Channel channel){
+        return channel.isWritable() && queued.get() < highWatermark;
+    }
+
+    /**
+     * @return false if the operation has to be rejected
+     */
+    final boolean admit(Channel channel) throws InterruptedException {
+        /* a channel that is still connecting or in the handshake is open, and its queue is bounded
+         * all the same. Only a closed one lets everybody through, to fail right away */
+        if(open(channel) || !channel.isOpen()) {
+            return true;
+        }
+        if(reject) {
+            return false;
+        }
+        /* callbacks on the event loop must never wait for the event loop */
+        if(channel.eventLoop().inEventLoop()) {
+            return true;
+        }
+        synchronized (this) {
+            waiters++;
+            try {
+                while (!open(channel) && channel.isOpen()) {
+                    /* the timeout covers a wakeup that raced with our check */
+                    wait(10);
+                }
+            } finally {
+                waiters--;
+            }
+        }
+        return true;
+    }
+
+    final void enqueued(long bytes){
+        queued.addAndGet(bytes);
+    }
+
+    final void dequeued(long bytes){
+        if(queued.addAndGet(-bytes) < highWatermark) {
+            wakeup();
+        }
+    }
+
+    final void wakeup(){
+        if(waiters == 0) {
+            return;
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters of the payload compression, to judge per cluster whether it pays off:
+ * the ratio tells what it saves on the network, the nanoseconds what it costs in CPU.
+ */
+public class CompressionStats {
+    private static final CompressionStats INSTANCE = new CompressionStats();
+
+    /* sender side */
+    private final AtomicLong compressed = new AtomicLong(0);
+    private final AtomicLong incompressible = new AtomicLong(0);
+    private final AtomicLong rawBytes = new AtomicLong(0);
+    private final AtomicLong wireBytes = new AtomicLong(0);
+    private final AtomicLong compressNanos = new AtomicLong(0);
+    /* receiver side */
+    private final AtomicLong decompressed = new AtomicLong(0);
+    private final AtomicLong decompressNanos = new AtomicLong(0);
+
+    public static CompressionStats get() {
+        return INSTANCE;
+    }
+
+    private CompressionStats() {
+    }
+
+    final void compressed(int raw, int wire, long nanos){
+        compressed.incrementAndGet();
+        rawBytes.addAndGet(raw);
+        wireBytes.addAndGet(wire);
+        compressNanos.addAndGet(nanos);
+    }
+
+    /* tried, but did not get any smaller, it went out as it was */
+    final void incompressible(int raw, long nanos){
+        incompressible.incrementAndGet();
+        rawBytes.addAndGet(raw);
+        wireBytes.addAndGet(raw);
+        compressNanos.addAndGet(nanos);
+    }
+
+    final void decompressed(long nanos){
+        decompressed.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    public long getCompressedMessages() {
+        return compressed.get();
+    }
+
+    public long getIncompressibleMessages() {
+        return incompressible.get();
+    }
+
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /* uncompressed over sent bytes of everything that was tried, 1.0 if nothing was */
+    public double getRatio() {
+        long wire = wireBytes.get();
+        return (wire == 0) ? 1.0 : (double) rawBytes.get() / wire;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressedMessages() {
+        return decompressed.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    final public String toString() {
+        return "compressed: " + getCompressedMessages() + " incompressible: " + getIncompressibleMessages() +
+                " bytes: " + getRawBytes() + " -> " + getWireBytes() + " ratio: " + String.format("%.2f", getRatio()) +
+                " compress: " + getCompressNanos() / 1000 + " us decompressed: " + getDecompressedMessages() +
+                " decompress: " + getDecompressNanos() / 1000 + " us";
+    }
+}
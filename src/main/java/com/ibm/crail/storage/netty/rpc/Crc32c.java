@@ -0,0 +1,212 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) over ByteBufs. Uses java.util.zip.CRC32C where the JVM has it (Java 9+,
+ * an intrinsic on x86 and aarch64), and a slicing-by-8 table implementation otherwise. Not
+ * thread safe, every encoder and decoder keeps its own.
+ */
+public abstract class Crc32c {
+    /* of updateAndCopy() where the sum cannot copy as it goes, well within L1 */
+    private static final int BLOCK = 8192;
+    private static final MethodHandle JDK_NEW;
+    private static final MethodHandle JDK_UPDATE;
+
+    static {
+        MethodHandle create = null;
+        MethodHandle update = null;
+        try {
+            /* looked up by name, we still build for Java 8 */
+            Class<?> jdk = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            create = lookup.findConstructor(jdk, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(jdk, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (Exception e) {
+            create = null;
+            update = null;
+        }
+        JDK_NEW = create;
+        JDK_UPDATE = update;
+    }
+
+    public static Crc32c newInstance() {
+        if(JDK_NEW != null) {
+            try {
+                return new JdkCrc32c((Checksum) JDK_NEW.invokeExact());
+            } catch (Throwable t) {
+                /* fall through to the table */
+            }
+        }
+        return new TableCrc32c();
+    }
+
+    public static String implementation() {
+        return (JDK_NEW != null) ? "java.util.zip.CRC32C" : "table";
+    }
+
+    /* adds length bytes from index on, the indexes of the buffer are not touched */
+    public abstract void update(ByteBuf buf, int index, int length);
+
+    /**
+     * Adds length bytes from the readerIndex of src on and copies them to the writerIndex of dst,
+     * in one pass, advancing both indexes.
+     */
+    public void updateAndCopy(ByteBuf src, int length, ByteBuf dst) {
+        /* a block at a time, the copy reads what the sum has just brought into the cache */
+        while (length > 0) {
+            int now = Math.min(length, BLOCK);
+            update(src, src.readerIndex(), now);
+            dst.writeBytes(src, now);
+            length -= now;
+        }
+    }
+
+    public abstract int getValue();
+
+    public abstract void reset();
+
+    /* the checksum of the readable bytes of a buffer, from scratch */
+    final public int compute(ByteBuf buf) {
+        reset();
+        update(buf, buf.readerIndex(), buf.readableBytes());
+        return getValue();
+    }
+
+    private static final class JdkCrc32c extends Crc32c {
+        private final Checksum checksum;
+
+        JdkCrc32c(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        public void update(ByteBuf buf, int index, int length) {
+            try {
+                /* one view per component, no copies */
+                for (ByteBuffer part : buf.nioBuffers(index, length)) {
+                    JDK_UPDATE.invokeExact(this.checksum, part);
+                }
+            } catch (Throwable t) {
+                throw new IllegalStateException("CRC32C update failed", t);
+            }
+        }
+
+        public int getValue() {
+            return (int) this.checksum.getValue();
+        }
+
+        public void reset() {
+            this.checksum.reset();
+        }
+    }
+
+    private static final class TableCrc32c extends Crc32c {
+        private static final int[][] TABLE = new int[8][256];
+
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) {
+                    c = ((c & 1) != 0) ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+                }
+                TABLE[0][n] = c;
+            }
+            for (int n = 0; n < 256; n++) {
+                for (int k = 1; k < 8; k++) {
+                    TABLE[k][n] = (TABLE[k - 1][n] >>> 8) ^ TABLE[0][TABLE[k - 1][n] & 0xff];
+                }
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        public void update(ByteBuf buf, int index, int length) {
+            ByteBuf le = buf.order(ByteOrder.LITTLE_ENDIAN);
+            int[][] t = TABLE;
+            int c = this.crc;
+            int end = index + length;
+            int i = index;
+            /* eight bytes per round */
+            for (; i + 8 <= end; i += 8) {
+                long v = le.getLong(i);
+                int lo = (int) v ^ c;
+                int hi = (int) (v >>> 32);
+                c = t[7][lo & 0xff] ^ t[6][(lo >>> 8) & 0xff] ^ t[5][(lo >>> 16) & 0xff] ^ t[4][lo >>> 24] ^
+                        t[3][hi & 0xff] ^ t[2][(hi >>> 8) & 0xff] ^ t[1][(hi >>> 16) & 0xff] ^ t[0][hi >>> 24];
+            }
+            for (; i < end; i++) {
+                c = (c >>> 8) ^ t[0][(c ^ buf.getByte(i)) & 0xff];
+            }
+            this.crc = c;
+        }
+
+        /* every long that is summed is written out right away */
+        public void updateAndCopy(ByteBuf src, int length, ByteBuf dst) {
+            if (length > dst.writableBytes()) {
+                throw new IndexOutOfBoundsException("Copying " + length + " bytes into " + dst);
+            }
+            ByteBuf le = src.order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuf out = dst.order(ByteOrder.LITTLE_ENDIAN);
+            int[][] t = TABLE;
+            int c = this.crc;
+            int i = src.readerIndex();
+            int end = i + length;
+            int o = dst.writerIndex();
+            for (; i + 8 <= end; i += 8, o += 8) {
+                long v = le.getLong(i);
+                out.setLong(o, v);
+                int lo = (int) v ^ c;
+                int hi = (int) (v >>> 32);
+                c = t[7][lo & 0xff] ^ t[6][(lo >>> 8) & 0xff] ^ t[5][(lo >>> 16) & 0xff] ^ t[4][lo >>> 24] ^
+                        t[3][hi & 0xff] ^ t[2][(hi >>> 8) & 0xff] ^ t[1][(hi >>> 16) & 0xff] ^ t[0][hi >>> 24];
+            }
+            for (; i < end; i++, o++) {
+                byte b = src.getByte(i);
+                dst.setByte(o, b);
+                c = (c >>> 8) ^ t[0][(c ^ b) & 0xff];
+            }
+            this.crc = c;
+            src.skipBytes(length);
+            dst.writerIndex(dst.writerIndex() + length);
+        }
+
+        public int getValue() {
+            return ~this.crc;
+        }
+
+        public void reset() {
+            this.crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -27,6 +27,42 @@ public class MessageTypes{
     static public int WRITE_RESP = 2;
     static public int READ_REQ = 3;
     static public int READ_RESP = 4;
+    /* vectored: the stag field carries the number of segments, opLength the total data bytes */
+    static public int READV_REQ = 5;
+    static public int READV_RESP = 6;
+    static public int WRITEV_REQ = 7;
+    static public int WRITEV_RESP = 8;
+    /* streamed reads: a request, data chunks paced by demand, and the client controls */
+    static public int READ_STREAM_REQ = 9;
+    static public int STREAM_DATA = 10;
+    static public int STREAM_DEMAND = 11;
+    static public int STREAM_CANCEL = 12;
+    /* connection handshake: the address field carries the protocol version (upper 32 bits) and the
+     * feature bits (lower 32 bits) of the sender, see helloWord() */
+    static public int HELLO = 13;
+    static public int HELLO_RESP = 14;
+
+    /* 1 is the protocol before the handshake, the version of a peer that does not answer HELLO */
+    static public int PROTOCOL_VERSION = 2;
+    static public int LEGACY_VERSION = 1;
+
+    /* the upper 16 bits of the type on the wire are flags, only sent to peers that know them */
+    static public int TYPE_MASK = 0xFFFF;
+    static public int FLAG_COMPRESSED = 1 << 16;
+    static public int FLAG_CHECKSUM = 1 << 17;
+
+    /* features a connection can agree on */
+    static public long FEATURE_SNAPPY = 1;
+    static public long FEATURE_CRC32C = 2;
+    /* READV/WRITEV, batching of many buffers into one request */
+    static public long FEATURE_VECTORED = 4;
+    /* READ_STREAM_REQ and its chunks */
+    static public long FEATURE_STREAMS = 8;
+    /* the varint header of RdmaMsgHeader.encodeCompact(), for everything after the handshake */
+    static public long FEATURE_COMPACT = 16;
+    /* the cookie of a HELLO, never a slot of the in-flight table. Peers that do not know the handshake
+     * reject it like a bad stag, with an error WRITE_RESP that carries this cookie */
+    static public long HELLO_COOKIE = -1;
 
 
     public static String MessageTypeToString(int m){
@@ -35,6 +71,16 @@ public class MessageTypes{
             case 2: return "WRITE_RESP";
             case 3: return "READ_REQ";
             case 4: return "READ_RESP";
+            case 5: return "READV_REQ";
+            case 6: return "READV_RESP";
+            case 7: return "WRITEV_REQ";
+            case 8: return "WRITEV_RESP";
+            case 9: return "READ_STREAM_REQ";
+            case 10: return "STREAM_DATA";
+            case 11: return "STREAM_DEMAND";
+            case 12: return "STREAM_CANCEL";
+            case 13: return "HELLO";
+            case 14: return "HELLO_RESP";
             default: return ("<INVALID : " + m + " >");
         }
     }
@@ -44,8 +90,49 @@ public class MessageTypes{
             case 1:
             case 2:
             case 3:
-            case 4: return false;
+            case 4:
+            case 5:
+            case 6:
+            case 7:
+            case 8:
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+            case 13:
+            case 14: return false;
         }
         return true;
     }
+
+    /* error status of a response whose request, or of a message whose payload, failed its CRC32C */
+    static public int STATUS_CHECKSUM = -2;
+
+    /* messages whose payload is user data, they carry a CRC32C once both sides agree on it */
+    public static boolean isDataPayload(int m){
+        return m == WRITE_REQ || m == READ_RESP || m == WRITEV_REQ || m == READV_RESP || m == STREAM_DATA;
+    }
+
+    public static long helloWord(int version, long features){
+        return ((long) version << 32) | (features & 0xFFFFFFFFL);
+    }
+
+    public static int helloVersion(long word){
+        return (int) (word >>> 32);
+    }
+
+    public static long helloFeatures(long word){
+        return word & 0xFFFFFFFFL;
+    }
+
+    /* sent by clients, the datanode needs to know where. Responses only carry what the client does not know */
+    public static boolean hasTarget(int m){
+        return m == WRITE_REQ || m == READ_REQ || m == READV_REQ || m == WRITEV_REQ || m == READ_STREAM_REQ ||
+                m == STREAM_DEMAND || m == STREAM_CANCEL;
+    }
+
+    /* requests that are followed by a list of (stag, address, length) segments */
+    public static boolean hasSegments(int m){
+        return m == READV_REQ || m == WRITEV_REQ;
+    }
 }
\ No newline at end of file
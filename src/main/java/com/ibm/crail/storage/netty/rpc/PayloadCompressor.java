@@ -0,0 +1,151 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.compression.SnappyFramedDecoder;
+import io.netty.handler.codec.compression.SnappyFramedEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snappy compression of WRITE_REQ and READ_RESP payloads on one connection. A payload is
+ * compressed only once both sides have agreed on it (see HELLO), so peers without
+ * compression keep getting plain messages. Each payload is a complete snappy frame stream
+ * on its own, built with the framed codec of netty.
+ */
+public class PayloadCompressor {
+    private final WireFeatures features;
+    private final int threshold;
+
+    /* netty 4.0.29 only has the Framed codec (neither deprecated nor renamed yet). Later netty versions call
+     * it SnappyFrameEncoder/Decoder and deprecate these, switch over together with the netty dependency */
+    private static final class FrameEncoder extends SnappyFramedEncoder {
+        final void compress(ByteBuf in, ByteBuf out) throws Exception {
+            /* the framed encoder does not touch the context */
+            encode(null, in, out);
+        }
+    }
+
+    private static final class FrameDecoder extends SnappyFramedDecoder {
+        final void decompress(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            while (in.isReadable()) {
+                int before = in.readableBytes();
+                decode(ctx, in, out);
+                if(in.readableBytes() == before) {
+                    throw new CorruptedFrameException("Truncated compressed payload, " + before + " bytes left");
+                }
+            }
+        }
+    }
+
+    public PayloadCompressor(WireFeatures features, int threshold){
+        this.features = features;
+        this.threshold = threshold;
+    }
+
+    final public boolean isActive(){
+        return this.features.has(MessageTypes.FEATURE_SNAPPY);
+    }
+
+    private boolean wants(RdmaMsgTx msg){
+        if(msg.type() != MessageTypes.WRITE_REQ && msg.type() != MessageTypes.READ_RESP) {
+            return false;
+        }
+        /* file regions go out with sendfile, there is nothing to compress them from */
+        return msg.status() == 0 && msg.hasTxPayload() && !msg.hasFileRegion() && !msg.hasSegments() &&
+                msg.opLength() >= this.threshold;
+    }
+
+    /**
+     * Compresses the payload of a message if the connection has agreed on it and it is large enough.
+     * A payload that does not get smaller goes out as it is. Safe to call from any thread, see
+     * RdmaEncoderTx.prepare().
+     */
+    final public void compress(RdmaMsgTx msg) throws Exception {
+        if(!isActive() || !wants(msg)) {
+            return;
+        }
+        long start = System.nanoTime();
+        ByteBuf raw = msg.getDataPayload();
+        /* a little more than the input, snappy never expands by more than 1/6 plus the framing */
+        ByteBuf out = PooledByteBufAllocator.DEFAULT.directBuffer(msg.opLength() + msg.opLength() / 6 + 64);
+        try {
+            new FrameEncoder().compress(raw.slice(), out);
+        } catch (Exception e) {
+            out.release();
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        if(out.readableBytes() >= msg.opLength()) {
+            out.release();
+            CompressionStats.get().incompressible(msg.opLength(), nanos);
+            return;
+        }
+        CompressionStats.get().compressed(msg.opLength(), out.readableBytes(), nanos);
+        msg.compressTxPayload(out);
+    }
+
+    /**
+     * Decompresses a payload that arrived with FLAG_COMPRESSED.
+     *
+     * @param ctx The context of the decoder, its allocator is used for the output.
+     * @param in Exactly the compressed bytes, they are consumed.
+     * @param length The uncompressed length from the header.
+     *
+     * @return a buffer with exactly length readable bytes, owned by the caller
+     */
+    public static ByteBuf decompress(ChannelHandlerContext ctx, ByteBuf in, int length) throws Exception {
+        long start = System.nanoTime();
+        List<Object> parts = new ArrayList<Object>();
+        ByteBuf result = ctx.alloc().directBuffer(length, length);
+        try {
+            /* the framing state is per payload, so is the decoder */
+            new FrameDecoder().decompress(ctx, in, parts);
+            for (Object part : parts) {
+                ByteBuf chunk = (ByteBuf) part;
+                if(chunk.readableBytes() > result.writableBytes()) {
+                    throw new CorruptedFrameException("Compressed payload is larger than its " + length + " bytes");
+                }
+                result.writeBytes(chunk);
+            }
+            if(result.readableBytes() != length) {
+                throw new CorruptedFrameException("Compressed payload has " + result.readableBytes() +
+                        " bytes instead of " + length);
+            }
+        } catch (Exception e) {
+            result.release();
+            throw e;
+        } finally {
+            for (Object part : parts) {
+                ((ByteBuf) part).release();
+            }
+        }
+        CompressionStats.get().decompressed(System.nanoTime() - start);
+        return result;
+    }
+}
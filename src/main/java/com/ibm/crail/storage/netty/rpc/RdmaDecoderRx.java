@@ -23,26 +23,63 @@
 package com.ibm.crail.storage.netty.rpc;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
 
 import java.util.List;
 
 public class RdmaDecoderRx extends ByteToMessageDecoder {
     enum DecoderState {
-        WAIT_FOR_HEADER, WAIT_FOR_PAYLOAD,
+        WAIT_FOR_HEADER, WAIT_FOR_EXTENSIONS, WAIT_FOR_SEGMENTS, WAIT_FOR_PAYLOAD, STREAM_PAYLOAD,
+        WAIT_FOR_COMPRESSED, STREAM_CHUNKS,
     }
 
+    /* returned by payloadSink() when the payload is to be dropped on the floor */
+    protected static final ByteBuf DISCARD = Unpooled.EMPTY_BUFFER;
+
     private RdmaMsgRx rxMsg;
+    private ByteBuf sink;
+    private int remaining;
+    private Crc32c crc;
+    /* null if this connection never uses any optional feature */
+    private final WireFeatures features;
     DecoderState state;
 
     public RdmaDecoderRx() {
+        this(null);
+    }
+
+    public RdmaDecoderRx(WireFeatures features) {
+        this.features = features;
         rxMsg = null;
+        sink = null;
+        remaining = 0;
+        crc = null;
         state = DecoderState.WAIT_FOR_HEADER;
     }
 
     final protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        abandon();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+        /* the rest of a half decoded message is never going to arrive */
+        abandon();
+    }
+
+    private void abandon() {
+        if (rxMsg != null) {
+            if (sink != null || state == DecoderState.STREAM_CHUNKS) {
+                payloadAbandoned(rxMsg);
+            }
+            rxMsg.recycle();
+        }
         rxMsg = null;
+        sink = null;
         state = DecoderState.WAIT_FOR_HEADER;
     }
 
@@ -50,34 +87,250 @@ public class RdmaDecoderRx extends ByteToMessageDecoder {
         state = DecoderState.WAIT_FOR_HEADER;
     }
 
-    final protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    /**
+     * Tells if a message carries a payload after its header. Error responses never do.
+     */
+    protected boolean hasPayload(RdmaMsgRx msg) {
+        if (msg.type() == MessageTypes.READ_REQ || msg.type() == MessageTypes.WRITE_RESP ||
+                msg.type() == MessageTypes.READV_REQ || msg.type() == MessageTypes.WRITEV_RESP ||
+                msg.type() == MessageTypes.STREAM_DEMAND || msg.type() == MessageTypes.STREAM_CANCEL)
+            return false;
+        return msg.status() == 0 && msg.opLength() > 0;
+    }
+
+    /**
+     * Gives a chance to stream the payload of a message straight into its final destination
+     * instead of accumulating it. The returned buffer is written from its writerIndex onwards.
+     *
+     * @param msg The message whose header has just been decoded.
+     *
+     * @return a buffer with opLength writable bytes, DISCARD to skip the payload, or null to
+     * accumulate the payload into the message as before.
+     */
+    protected ByteBuf payloadSink(RdmaMsgRx msg) {
+        return null;
+    }
+
+    /**
+     * Gives a chance to hand the payload of a message on in pieces as they arrive, for somebody
+     * else to place, instead of accumulating it. Only asked if payloadSink() returned null.
+     *
+     * @param msg The message whose header has just been decoded.
+     *
+     * @return true to get the payload through payloadChunk(), false to accumulate it.
+     */
+    protected boolean streamsPayload(RdmaMsgRx msg) {
+        return false;
+    }
+
+    /**
+     * A piece of a payload streamsPayload() took, in order. The message is handed on once its
+     * last piece has been.
+     *
+     * @param msg The message the payload belongs to.
+     * @param chunk What has arrived of it, retained for the callee, who has to release it.
+     * @param position Where the chunk starts within the payload.
+     */
+    protected void payloadChunk(RdmaMsgRx msg, ByteBuf chunk, int position) {
+        chunk.release();
+    }
+
+    /**
+     * The connection went away while a payload was being placed into the buffer payloadSink()
+     * returned for it, or handed on by payloadChunk(), the message is not handed on.
+     *
+     * @param msg The message whose payload is incomplete.
+     */
+    protected void payloadAbandoned(RdmaMsgRx msg) {
+    }
+
+    /* the crc of the message at hand, for payloads that come with one */
+    private Crc32c crc() {
+        if (crc == null) {
+            crc = Crc32c.newInstance();
+        }
+        return crc;
+    }
+
+    /* a mismatch does not break the stream, the handler answers or fails the operation */
+    private void verify(int actual) {
+        if (actual != rxMsg.checksum()) {
+            rxMsg.markChecksumFailed();
+        }
+    }
+
+    /* the header and its extensions are in, the segments, if any, come next */
+    private void extensionsDone(List<Object> out) {
+        if (rxMsg.isCompressed() && (rxMsg.compressedLength() <= 0 || rxMsg.compressedLength() >= rxMsg.opLength())) {
+            throw new CorruptedFrameException("Invalid compressed length in " + rxMsg);
+        }
+        if (MessageTypes.hasSegments(rxMsg.type())) {
+            int count = rxMsg.segmentCount();
+            if (count <= 0 || count > RdmaMsgRx.MAX_SEGMENTS) {
+                throw new CorruptedFrameException("Invalid number of segments in " + rxMsg);
+            }
+            state = DecoderState.WAIT_FOR_SEGMENTS;
+        } else {
+            headerDone(out);
+        }
+    }
+
+    /* header and segments are in, decide what to do with the payload */
+    private void headerDone(List<Object> out) {
+        if (!hasPayload(rxMsg)) {
+            out.add(rxMsg);
+            state = DecoderState.WAIT_FOR_HEADER;
+            rxMsg = null;
+        } else if (rxMsg.isCompressed()) {
+            /* compressed payloads are accumulated, the sink only gets to see them decompressed */
+            state = DecoderState.WAIT_FOR_COMPRESSED;
+        } else {
+            sink = payloadSink(rxMsg);
+            if (sink != null) {
+                remaining = rxMsg.opLength();
+                if (rxMsg.hasChecksum()) {
+                    crc().reset();
+                }
+                state = DecoderState.STREAM_PAYLOAD;
+            } else if (streamsPayload(rxMsg)) {
+                remaining = rxMsg.opLength();
+                state = DecoderState.STREAM_CHUNKS;
+            } else {
+                state = DecoderState.WAIT_FOR_PAYLOAD;
+            }
+        }
+    }
+
+    /* decompresses and checks a payload, then hands it to the sink or to the message */
+    private void placeCompressed(ChannelHandlerContext ctx, ByteBuf compressed) throws Exception {
+        ByteBuf payload;
+        try {
+            payload = PayloadCompressor.decompress(ctx, compressed, rxMsg.opLength());
+        } catch (Exception e) {
+            if (!rxMsg.hasChecksum()) {
+                throw e;
+            }
+            /* the frame boundary is intact, only this payload is lost and the handlers see the failure */
+            rxMsg.markChecksumFailed();
+            return;
+        }
+        if (rxMsg.hasChecksum()) {
+            verify(crc().compute(payload));
+        }
+        ByteBuf target = payloadSink(rxMsg);
+        if (target == null) {
+            rxMsg.ownRxPayload(payload);
+            return;
+        }
+        /* corrupted data is not placed */
+        if (target != DISCARD && !rxMsg.isChecksumFailed()) {
+            target.writeBytes(payload);
+        }
+        payload.release();
+    }
+
+    final protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
         switch (state) {
             case WAIT_FOR_HEADER:
-                /* in case of init and bytes not ready, we return immediately */
-                if (in.readableBytes() < RdmaMsgRx.CSIZE)
-                    return;
-                /* if enough bytes are around then allocate object and decode the header */
-                rxMsg = new RdmaMsgRx();
-                rxMsg.decodeHeader(in);
-                if (rxMsg.type() == MessageTypes.READ_REQ || rxMsg.type() == MessageTypes.WRITE_RESP) {
-                    out.add(rxMsg);
-                    state = DecoderState.WAIT_FOR_HEADER;
-                    rxMsg = null;
+                if (features != null && features.has(MessageTypes.FEATURE_COMPACT)) {
+                    /* agreed on in the handshake, which itself came in with the fixed header */
+                    if (rxMsg == null)
+                        rxMsg = RdmaMsgRx.newInstance();
+                    if (!rxMsg.decodeCompact(in))
+                        return;
+                } else {
+                    /* in case of init and bytes not ready, we return immediately */
+                    if (in.readableBytes() < RdmaMsgRx.CSIZE)
+                        return;
+                    /* if enough bytes are around then allocate object and decode the header */
+                    rxMsg = RdmaMsgRx.newInstance();
+                    rxMsg.decodeHeader(in);
+                }
+                if (rxMsg.extensionSize() > 0) {
+                    state = DecoderState.WAIT_FOR_EXTENSIONS;
                 } else {
-                    state = DecoderState.WAIT_FOR_PAYLOAD;
+                    extensionsDone(out);
                 }
                 break;
 
+            case WAIT_FOR_EXTENSIONS:
+                if (in.readableBytes() < rxMsg.extensionSize())
+                    return;
+                rxMsg.decodeExtensions(in);
+                extensionsDone(out);
+                break;
+
+            case WAIT_FOR_SEGMENTS:
+                if (in.readableBytes() < rxMsg.segmentCount() * RdmaMsgRx.SEGMENT_SIZE)
+                    return;
+                rxMsg.decodeSegments(in);
+                headerDone(out);
+                break;
+
             case WAIT_FOR_PAYLOAD:
                 /* now we check for length when it exceed the expected length */
                 if (rxMsg.opLength() > in.readableBytes())
                     return;
 
                 rxMsg.referenceRxPayloadAndRetain(in);
+                if (rxMsg.hasChecksum()) {
+                    /* checked before anybody copies it anywhere */
+                    ByteBuf payload = rxMsg.takeRxPayload();
+                    verify(crc().compute(payload));
+                    rxMsg.ownRxPayload(payload);
+                }
+                out.add(rxMsg);
+                state = DecoderState.WAIT_FOR_HEADER;
+                rxMsg = null;
+                break;
+
+            case STREAM_PAYLOAD:
+                /* whatever has arrived goes to the sink, nothing is kept in the cumulation */
+                int now = Math.min(remaining, in.readableBytes());
+                if (sink == DISCARD) {
+                    in.skipBytes(now);
+                } else {
+                    if (rxMsg.hasChecksum()) {
+                        /* summed in the same pass as the copy */
+                        crc.updateAndCopy(in, now, sink);
+                    } else {
+                        sink.writeBytes(in, now);
+                    }
+                }
+                remaining -= now;
+                if (remaining == 0) {
+                    if (rxMsg.hasChecksum() && sink != DISCARD) {
+                        verify(crc.getValue());
+                    }
+                    out.add(rxMsg);
+                    state = DecoderState.WAIT_FOR_HEADER;
+                    rxMsg = null;
+                    sink = null;
+                }
+                break;
+
+            case STREAM_CHUNKS:
+                /* the chunks share the cumulation, which netty does not grow in place while they are around */
+                int arrived = Math.min(remaining, in.readableBytes());
+                if (arrived == 0)
+                    return;
+                payloadChunk(rxMsg, in.readSlice(arrived).retain(), rxMsg.opLength() - remaining);
+                remaining -= arrived;
+                if (remaining == 0) {
+                    out.add(rxMsg);
+                    state = DecoderState.WAIT_FOR_HEADER;
+                    rxMsg = null;
+                }
+                break;
+
+            case WAIT_FOR_COMPRESSED:
+                if (rxMsg.compressedLength() > in.readableBytes())
+                    return;
+                placeCompressed(ctx, in.readSlice(rxMsg.compressedLength()));
                 out.add(rxMsg);
                 state = DecoderState.WAIT_FOR_HEADER;
                 rxMsg = null;
                 break;
         }
     }
-}
\ No newline at end of file
+}
@@ -22,14 +22,93 @@
 
 package com.ibm.crail.storage.netty.rpc;
 
-import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
-public class RdmaEncoderTx extends MessageToByteEncoder<RdmaMsgTx> {
+import java.util.List;
 
-    final protected void encode(ChannelHandlerContext ctx, RdmaMsgTx txMsg, ByteBuf buf) {
-        txMsg.encode(buf);
+/**
+ * Turns a message into a single buffer: header and payload become the two components of a
+ * composite buffer, so that one gathering write puts both on the wire back to back without
+ * any locking around two separate channel writes. The message itself stays with the caller,
+ * which recycles it once the write completes.
+ */
+public class RdmaEncoderTx extends MessageToMessageEncoder<RdmaMsgTx> {
+    /* null if this connection never uses any optional feature */
+    private final WireFeatures features;
+    private final PayloadCompressor compressor;
+    private Crc32c crc;
+
+    public RdmaEncoderTx(){
+        this(null, 0);
+    }
+
+    public RdmaEncoderTx(WireFeatures features, int compressionThreshold){
+        this.features = features;
+        this.compressor = (features == null) ? null : new PayloadCompressor(features, compressionThreshold);
+        this.crc = null;
+    }
+
+    private boolean wantsChecksum(RdmaMsgTx txMsg){
+        return this.features.has(MessageTypes.FEATURE_CRC32C) && MessageTypes.isDataPayload(txMsg.type()) &&
+                txMsg.status() == 0 && txMsg.opLength() > 0 && txMsg.hasTxPayload() && !txMsg.hasFileRegion();
+    }
+
+    private void transform(RdmaMsgTx txMsg, Crc32c crc) throws Exception {
+        /* the checksum covers the data as the application sees it, so it is taken before compressing */
+        if(wantsChecksum(txMsg)) {
+            txMsg.setChecksum(crc.compute(txMsg.getDataPayload()));
+        }
+        /* swaps in the compressed payload, before the header is encoded with the flags */
+        this.compressor.compress(txMsg);
+        txMsg.markPrepared();
+    }
+
+    /**
+     * Checksums and compresses the payload of a message on the calling thread, so that the event
+     * loop only has to write it. Only valid once the connection has agreed on its features, and
+     * before the message is written. Messages that are not prepared get it done by the encoder.
+     */
+    final public void prepare(RdmaMsgTx txMsg) throws Exception {
+        if(this.features == null || txMsg.isPrepared()) {
+            return;
+        }
+        if(this.compressor.isActive() || this.features.has(MessageTypes.FEATURE_CRC32C)) {
+            /* a crc of our own, the one of the encoder belongs to the event loop */
+            transform(txMsg, Crc32c.newInstance());
+        }
+    }
+
+    final protected void encode(ChannelHandlerContext ctx, RdmaMsgTx txMsg, List<Object> out) throws Exception {
+        if(this.features != null) {
+            if(!txMsg.isPrepared()) {
+                if(this.crc == null) {
+                    this.crc = Crc32c.newInstance();
+                }
+                transform(txMsg, this.crc);
+            }
+            if(this.features.isCompact(txMsg.type())) {
+                txMsg.useCompactHeader();
+            }
+        }
+        if(txMsg.hasFileRegion()) {
+            /* a file region cannot be part of a composite, header and file go out one after the other */
+            out.add(txMsg.getHeaderPayload().retain());
+            out.add(txMsg.getFileRegion().retain());
+        } else if(txMsg.hasSegments()) {
+            /* vectored requests: header, segment list and the data of all segments, if any */
+            if(txMsg.hasTxPayload()) {
+                out.add(Unpooled.wrappedBuffer(txMsg.getHeaderPayload().retain(), txMsg.getSegments().retain(),
+                        txMsg.getDataPayload().retain()));
+            } else {
+                out.add(Unpooled.wrappedBuffer(txMsg.getHeaderPayload().retain(), txMsg.getSegments().retain()));
+            }
+        } else if(txMsg.hasTxPayload()) {
+            out.add(Unpooled.wrappedBuffer(txMsg.getHeaderPayload().retain(), txMsg.getDataPayload().retain()));
+        } else {
+            out.add(txMsg.getHeaderPayload().retain());
+        }
     }
 
     @Override
@@ -23,6 +23,7 @@
 package com.ibm.crail.storage.netty.rpc;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
 
 public class RdmaMsgHeader {
 
@@ -32,8 +33,32 @@ public class RdmaMsgHeader {
     protected int type; // +4
     protected int status; // +4
     protected long cookie; // +8 = 32;
+    /* travel in the upper bits of the type, type() never sees them */
+    protected int flags;
+    /* the number of payload bytes on the wire if compressed, opLength stays the uncompressed size */
+    protected int compressedLength;
+    /* CRC32C of the uncompressed payload, if FLAG_CHECKSUM is set */
+    protected int checksum;
 
     public static int CSIZE = 32;
+    /* type byte, then varints: slot (5), generation (5), opLength (5), status (5), stag (5) and address (10) at most */
+    public static int COMPACT_MAX_SIZE = 36;
+    /* the bits of the type byte of a compact header */
+    private static final int COMPACT_TYPE_MASK = 0x1F;
+    private static final int COMPACT_COMPRESSED = 0x20;
+    private static final int COMPACT_CHECKSUM = 0x40;
+    private static final int COMPACT_STATUS = 0x80;
+    /* readVarLong() ran out of bytes */
+    private static final long INCOMPLETE = Long.MIN_VALUE;
+    /* a vectored request carries one (stag, address, length) triple per segment */
+    public static int SEGMENT_SIZE = 16;
+    public static int MAX_SEGMENTS = 1024;
+    /* a stream request carries the length, the chunk size and the initial demand (ints), a range never spans regions */
+    public static int STREAM_REQ_SIZE = 12;
+    /* a compressed payload is preceded by its compressed length (int) */
+    public static int COMPRESSED_EXT_SIZE = 4;
+    /* followed by the checksum (int), if there is one */
+    public static int CHECKSUM_EXT_SIZE = 4;
 
     public RdmaMsgHeader(){
         address = -1;
@@ -42,6 +67,9 @@ public class RdmaMsgHeader {
         status = -1;
         cookie = -1;
         stag = -1;
+        flags = 0;
+        compressedLength = -1;
+        checksum = 0;
     }
 
     final public void initHeader(long addr, int len, int stag, int type, int status, long cookie){
@@ -51,6 +79,9 @@ public class RdmaMsgHeader {
         this.type = type;
         this.status = status;
         this.cookie = cookie;
+        this.flags = 0;
+        this.compressedLength = -1;
+        this.checksum = 0;
     }
 
     final public long cookie(){
@@ -61,7 +92,7 @@ public class RdmaMsgHeader {
         target.writeLong(address);
         target.writeInt(opLength);
         target.writeInt(stag);
-        target.writeInt(type);
+        target.writeInt(type | flags);
         target.writeInt(status);
         target.writeLong(cookie);
     }
@@ -70,11 +101,100 @@ public class RdmaMsgHeader {
         this.address = src.readLong();
         this.opLength= src.readInt();
         this.stag = src.readInt();
-        this.type = src.readInt();
+        int typeAndFlags = src.readInt();
+        this.type = typeAndFlags & MessageTypes.TYPE_MASK;
+        this.flags = typeAndFlags & ~MessageTypes.TYPE_MASK;
         this.status = src.readInt();
         this.cookie = src.readLong();
     }
 
+    private static void writeVarLong(ByteBuf target, long value){
+        while ((value & ~0x7FL) != 0) {
+            target.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuf src){
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!src.isReadable()) {
+                return INCOMPLETE;
+            }
+            byte b = src.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varint in a compact header");
+    }
+
+    /**
+     * The header in as few bytes as the values need: a type byte that also carries the flags and
+     * whether there is a status, then the cookie and the length as varints. The two halves of the
+     * cookie, the slot and its generation (see InflightTable), go as varints of their own, so that
+     * each takes one or two bytes instead of the five a combined 64 bit value would need. Only
+     * requests carry the stag and the address, the client knows them for the responses. A
+     * successful 4 KB read response takes 5 to 7 bytes instead of 32.
+     */
+    public void encodeCompact(ByteBuf target){
+        target.writeByte(type | (isCompressed() ? COMPACT_COMPRESSED : 0) | (hasChecksum() ? COMPACT_CHECKSUM : 0) |
+                (status != 0 ? COMPACT_STATUS : 0));
+        writeVarLong(target, cookie & 0xFFFFFFFFL);
+        writeVarLong(target, cookie >>> 32);
+        writeVarLong(target, opLength & 0xFFFFFFFFL);
+        if (status != 0) {
+            /* zigzag, errors are small negative numbers */
+            writeVarLong(target, ((status << 1) ^ (status >> 31)) & 0xFFFFFFFFL);
+        }
+        if (MessageTypes.hasTarget(type)) {
+            writeVarLong(target, stag & 0xFFFFFFFFL);
+            writeVarLong(target, address);
+        }
+    }
+
+    /**
+     * Counterpart of encodeCompact().
+     *
+     * @return false, with src untouched, if the header has not completely arrived yet
+     */
+    public boolean decodeCompact(ByteBuf src){
+        if (!src.isReadable()) {
+            return false;
+        }
+        int start = src.readerIndex();
+        int first = src.readUnsignedByte();
+        long slot = readVarLong(src);
+        long generation = (slot == INCOMPLETE) ? INCOMPLETE : readVarLong(src);
+        long length = (generation == INCOMPLETE) ? INCOMPLETE : readVarLong(src);
+        long status = 0;
+        if ((first & COMPACT_STATUS) != 0 && length != INCOMPLETE) {
+            status = readVarLong(src);
+        }
+        long stag = 0;
+        long address = 0;
+        int type = first & COMPACT_TYPE_MASK;
+        if (MessageTypes.hasTarget(type) && length != INCOMPLETE && status != INCOMPLETE) {
+            stag = readVarLong(src);
+            address = (stag == INCOMPLETE) ? INCOMPLETE : readVarLong(src);
+        }
+        if (length == INCOMPLETE || status == INCOMPLETE || stag == INCOMPLETE || address == INCOMPLETE) {
+            src.readerIndex(start);
+            return false;
+        }
+        this.type = type;
+        this.flags = ((first & COMPACT_COMPRESSED) != 0 ? MessageTypes.FLAG_COMPRESSED : 0) |
+                ((first & COMPACT_CHECKSUM) != 0 ? MessageTypes.FLAG_CHECKSUM : 0);
+        this.cookie = (generation << 32) | (slot & 0xFFFFFFFFL);
+        this.opLength = (int) length;
+        this.status = ((int) status >>> 1) ^ -((int) status & 1);
+        this.stag = (int) stag;
+        this.address = address;
+        return true;
+    }
+
     final public long address(){
         return address;
     }
@@ -95,9 +215,32 @@ public class RdmaMsgHeader {
         return type;
     }
 
+    final public boolean isCompressed(){
+        return (flags & MessageTypes.FLAG_COMPRESSED) != 0;
+    }
+
+    final public int compressedLength(){
+        return compressedLength;
+    }
+
+    final public boolean hasChecksum(){
+        return (flags & MessageTypes.FLAG_CHECKSUM) != 0;
+    }
+
+    final public int checksum(){
+        return checksum;
+    }
+
+    /* the bytes that follow the header (and come before any segments) */
+    final public int extensionSize(){
+        return (isCompressed() ? COMPRESSED_EXT_SIZE : 0) + (hasChecksum() ? CHECKSUM_EXT_SIZE : 0);
+    }
+
     // this is overridden later
     public String toString() {
-        return "RDMAMsg addr: 0x" + Long.toHexString(address) + " len: " + opLength + " stag : " + stag + " type: " + MessageTypes.MessageTypeToString(type) + " status: " + status + " cookie: " + cookie;
+        return "RDMAMsg addr: 0x" + Long.toHexString(address) + " len: " + opLength + " stag : " + stag + " type: " + MessageTypes.MessageTypeToString(type) + " status: " + status + " cookie: " + cookie +
+                (isCompressed() ? " compressed: " + compressedLength : "") +
+                (hasChecksum() ? " crc: 0x" + Integer.toHexString(checksum) : "");
     }
 }
 
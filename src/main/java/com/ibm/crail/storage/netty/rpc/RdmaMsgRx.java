@@ -23,14 +23,57 @@
 package com.ibm.crail.storage.netty.rpc;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
 
-import java.nio.ByteBuffer;
-
+/**
+ * Incoming message. Instances are recycled: the decoder gets one with newInstance() and the
+ * handler that consumes it calls recycle() when done.
+ */
 public class RdmaMsgRx extends RdmaMsgHeader {
+    private static final Recycler<RdmaMsgRx> RECYCLER = new Recycler<RdmaMsgRx>() {
+        @Override
+        protected RdmaMsgRx newObject(Handle handle) {
+            return new RdmaMsgRx(handle);
+        }
+    };
+
+    private final Recycler.Handle handle;
     ByteBuf rxPayload;
+    /* segments of a vectored request, the arrays are kept across recycling */
+    private int segments;
+    private int[] segStag;
+    private long[] segAddress;
+    private int[] segLength;
+    /* the payload did not match the checksum that came with it */
+    private boolean checksumFailed;
+    /* whoever the decoder has placed the payload for, handed on to the handler */
+    private Object owner;
 
-    public RdmaMsgRx(){
+    private RdmaMsgRx(Recycler.Handle handle){
+        this.handle = handle;
         this.rxPayload = null;
+        this.segments = 0;
+        this.segStag = new int[0];
+        this.segAddress = new long[0];
+        this.segLength = new int[0];
+        this.checksumFailed = false;
+        this.owner = null;
+    }
+
+    public static RdmaMsgRx newInstance(){
+        return RECYCLER.get();
+    }
+
+    public void recycle(){
+        if(this.rxPayload != null) {
+            this.rxPayload.release();
+            this.rxPayload = null;
+        }
+        this.segments = 0;
+        this.checksumFailed = false;
+        this.owner = null;
+        initHeader(-1, -1, -1, -1, -1, -1);
+        RECYCLER.recycle(this, handle);
     }
 
     final public void referenceRxPayloadAndRetain(ByteBuf src){
@@ -38,15 +81,95 @@ public class RdmaMsgRx extends RdmaMsgHeader {
         assert this.rxPayload.readableBytes() == this.opLength;
     }
 
-    final public void copyAndReleaseRxPayload(ByteBuffer dst){
-        this.rxPayload.readBytes(dst);
-        this.rxPayload.release();
+    /* takes over the reference on an already decoded payload, e.g. a decompressed one */
+    final public void ownRxPayload(ByteBuf payload){
+        this.rxPayload = payload;
+        assert this.rxPayload.readableBytes() == this.opLength;
+    }
+
+    /* a buffer of our own that the decoder streams the payload into, complete once the message is handed on */
+    final public void fillRxPayload(ByteBuf scratch){
+        this.rxPayload = scratch;
+    }
+
+    /* reads what follows the header of a compressed or checksummed message, in the order it is written */
+    final public void decodeExtensions(ByteBuf src){
+        if(isCompressed()) {
+            this.compressedLength = src.readInt();
+        }
+        if(hasChecksum()) {
+            this.checksum = src.readInt();
+        }
+    }
+
+    final public void markChecksumFailed(){
+        this.checksumFailed = true;
+    }
+
+    final public boolean isChecksumFailed(){
+        return this.checksumFailed;
+    }
+
+    final public void setOwner(Object owner){
+        this.owner = owner;
+    }
+
+    final public Object getOwner(){
+        return this.owner;
+    }
+
+    /* the segment count of a vectored request travels in the stag field */
+    final public int segmentCount(){
+        return this.stag;
+    }
+
+    final public void decodeSegments(ByteBuf src){
+        int count = segmentCount();
+        if(segStag.length < count) {
+            segStag = new int[count];
+            segAddress = new long[count];
+            segLength = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            segStag[i] = src.readInt();
+            segAddress[i] = src.readLong();
+            segLength[i] = src.readInt();
+        }
+        this.segments = count;
+    }
+
+    final public int segments(){
+        return this.segments;
+    }
+
+    final public int segmentStag(int i){
+        return segStag[i];
+    }
+
+    final public long segmentAddress(int i){
+        return segAddress[i];
+    }
+
+    final public int segmentLength(int i){
+        return segLength[i];
+    }
+
+    final public boolean hasRxPayload(){
+        return this.rxPayload != null;
+    }
+
+    /* hands the accumulated payload over to the caller, who has to release it */
+    final public ByteBuf takeRxPayload(){
+        ByteBuf payload = this.rxPayload;
+        this.rxPayload = null;
+        return payload;
     }
 
     final public void copyAndReleaseRxPayload(ByteBuf dst, int index){
         this.rxPayload.readBytes(dst, index, this.opLength);
         assert this.rxPayload.readableBytes() == 0;
         this.rxPayload.release();
+        this.rxPayload = null;
     }
 
     final public String toString() {
@@ -54,7 +177,7 @@ public class RdmaMsgRx extends RdmaMsgHeader {
     }
 
     final public RdmaMsgTx makeTxMsg(int ecode, int type){
-        RdmaMsgTx msg = new RdmaMsgTx();
+        RdmaMsgTx msg = RdmaMsgTx.newInstance();
         /* we copy the message as it is - with the given ecode and type */
         msg.initHeader(this.address, this.opLength, this.stag, type, ecode, this.cookie);
         return  msg;
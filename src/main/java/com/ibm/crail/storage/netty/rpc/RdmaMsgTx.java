@@ -23,31 +23,145 @@
 package com.ibm.crail.storage.netty.rpc;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.FileRegion;
+import io.netty.util.Recycler;
 
 import java.nio.ByteBuffer;
 
-import static io.netty.buffer.Unpooled.directBuffer;
 import static io.netty.buffer.Unpooled.wrappedBuffer;
 
-public class RdmaMsgTx extends RdmaMsgHeader {
+/**
+ * Outgoing message. Instances are recycled: get one with newInstance() and it goes back to
+ * the pool once the write it is listening on completes (see operationComplete).
+ */
+public class RdmaMsgTx extends RdmaMsgHeader implements ChannelFutureListener {
+    private static final Recycler<RdmaMsgTx> RECYCLER = new Recycler<RdmaMsgTx>() {
+        @Override
+        protected RdmaMsgTx newObject(Handle handle) {
+            return new RdmaMsgTx(handle);
+        }
+    };
+
+    private final Recycler.Handle handle;
     ByteBuf txPayload;
     ByteBuf header;
+    ByteBuf segments;
+    FileRegion fileRegion;
     boolean encoded;
+    /* the header goes out in the varint format, see RdmaMsgHeader.encodeCompact() */
+    boolean compact;
+    /* checksummed and compressed ahead of the encoder, see RdmaEncoderTx.prepare() */
+    boolean prepared;
 
-    public RdmaMsgTx(){
-        header = directBuffer(RdmaMsgHeader.CSIZE, RdmaMsgHeader.CSIZE).retain();
+    private RdmaMsgTx(Recycler.Handle handle){
+        this.handle = handle;
+        header = null;
+        segments = null;
+        fileRegion = null;
         txPayload = null;
         encoded = false;
+        compact = false;
+        prepared = false;
+    }
+
+    public static RdmaMsgTx newInstance(){
+        RdmaMsgTx msg = RECYCLER.get();
+        /* room for the extensions, should the payload get compressed or checksummed on its way out */
+        msg.header = PooledByteBufAllocator.DEFAULT.directBuffer(RdmaMsgHeader.CSIZE,
+                Math.max(RdmaMsgHeader.CSIZE, RdmaMsgHeader.COMPACT_MAX_SIZE) +
+                        RdmaMsgHeader.COMPRESSED_EXT_SIZE + RdmaMsgHeader.CHECKSUM_EXT_SIZE);
+        msg.encoded = false;
+        msg.compact = false;
+        msg.prepared = false;
+        return msg;
     }
 
     public void referenceTxPayload(ByteBuffer src){
-        this.txPayload = wrappedBuffer(src).retain();
+        /* a fresh wrapper, the reference is ours already */
+        this.txPayload = wrappedBuffer(src);
     }
 
     public void referenceTxPayload(ByteBuf src, int position, int length){
         this.txPayload = src.slice(position, length).retain();
     }
 
+    /* takes over the reference on the payload, e.g. a composite of the segments of a vectored op */
+    public void ownTxPayload(ByteBuf payload){
+        this.txPayload = payload;
+    }
+
+    /* the payload is sent from a file, with sendfile where the transport supports it */
+    public void referenceTxFileRegion(FileRegion region){
+        this.fileRegion = region;
+    }
+
+    public boolean hasFileRegion(){
+        return this.fileRegion != null;
+    }
+
+    public FileRegion getFileRegion(){
+        return this.fileRegion;
+    }
+
+    /**
+     * Adds the segment list of a vectored request, it goes on the wire right after the header.
+     * The number of segments has to be in the stag field of the header.
+     */
+    public void setSegments(int[] stags, long[] addresses, int[] lengths){
+        int count = stags.length;
+        this.segments = PooledByteBufAllocator.DEFAULT.directBuffer(count * SEGMENT_SIZE, count * SEGMENT_SIZE);
+        for (int i = 0; i < count; i++) {
+            this.segments.writeInt(stags[i]);
+            this.segments.writeLong(addresses[i]);
+            this.segments.writeInt(lengths[i]);
+        }
+    }
+
+    /**
+     * Replaces the payload with its compressed form, the header keeps the uncompressed length.
+     * Has to happen before the header is encoded.
+     */
+    public void compressTxPayload(ByteBuf compressed){
+        assert !encoded;
+        releaseTxPayload();
+        this.txPayload = compressed;
+        this.flags |= MessageTypes.FLAG_COMPRESSED;
+        this.compressedLength = compressed.readableBytes();
+    }
+
+    /* the CRC32C of the payload as it is before any compression. Has to happen before the header is encoded */
+    public void setChecksum(int crc){
+        assert !encoded;
+        this.flags |= MessageTypes.FLAG_CHECKSUM;
+        this.checksum = crc;
+    }
+
+    /* for connections that have agreed on it. Has to happen before the header is encoded */
+    public void useCompactHeader(){
+        assert !encoded;
+        this.compact = true;
+    }
+
+    public void markPrepared(){
+        assert !encoded;
+        this.prepared = true;
+    }
+
+    public boolean isPrepared(){
+        return this.prepared;
+    }
+
+    public boolean hasSegments(){
+        return this.segments != null;
+    }
+
+    public ByteBuf getSegments(){
+        return this.segments;
+    }
+
     public void releaseTxPayload(){
         this.txPayload.release();
         this.txPayload = null;
@@ -61,17 +175,59 @@ public class RdmaMsgTx extends RdmaMsgHeader {
     public ByteBuf getHeaderPayload(){
         if(!encoded) {
             header.clear();
-            super.encode(header);
+            if(compact) {
+                super.encodeCompact(header);
+            } else {
+                super.encode(header);
+            }
+            if(isCompressed()) {
+                header.writeInt(compressedLength);
+            }
+            if(hasChecksum()) {
+                header.writeInt(checksum);
+            }
             encoded = true;
         }
         return header;
     }
 
+    public boolean hasTxPayload(){
+        return this.txPayload != null;
+    }
+
     public ByteBuf getDataPayload(){
-        assert (this.txPayload.readableBytes() == opLength);
+        assert (this.txPayload.readableBytes() == (isCompressed() ? compressedLength : opLength));
         return txPayload;
     }
 
+    /**
+     * Releases our references on the header and the payload, and puts the message back into
+     * the pool. Must not be touched afterwards.
+     */
+    public void recycle(){
+        if(this.header != null) {
+            releaseHeaderPayload();
+        }
+        if(this.txPayload != null) {
+            releaseTxPayload();
+        }
+        if(this.segments != null) {
+            this.segments.release();
+            this.segments = null;
+        }
+        if(this.fileRegion != null) {
+            this.fileRegion.release();
+            this.fileRegion = null;
+        }
+        initHeader(-1, -1, -1, -1, -1, -1);
+        RECYCLER.recycle(this, handle);
+    }
+
+    /* used as the listener of the channel write of this message */
+    final public void operationComplete(ChannelFuture future) throws Exception {
+        recycle();
+    }
+
     final public String toString() {
         return super.toString() + " txPayload: " + (this.txPayload == null?" NULL ":" NotNULL ");
     }
@@ -0,0 +1,88 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+/**
+ * The outcome of the handshake of one connection: what this side supports, and the protocol
+ * version and features both sides have agreed on with HELLO. Until the handshake is done
+ * nothing optional is used.
+ */
+public class WireFeatures {
+    private final long local;
+    private volatile long agreed;
+    private volatile int version;
+
+    public WireFeatures(boolean compression, boolean checksum, boolean compact){
+        /* vectored and streamed IO are always there, the rest is up to the configuration */
+        this.local = MessageTypes.FEATURE_VECTORED | MessageTypes.FEATURE_STREAMS |
+                (compression ? MessageTypes.FEATURE_SNAPPY : 0) | (checksum ? MessageTypes.FEATURE_CRC32C : 0) |
+                (compact ? MessageTypes.FEATURE_COMPACT : 0);
+        this.agreed = 0;
+        this.version = MessageTypes.LEGACY_VERSION;
+    }
+
+    final public long local(){
+        return this.local;
+    }
+
+    /* what we put into our HELLO */
+    final public long hello(){
+        return MessageTypes.helloWord(MessageTypes.PROTOCOL_VERSION, this.local);
+    }
+
+    /**
+     * Settles the connection on the lower of both versions and on what both sides support.
+     *
+     * @param peerHello The address field of the HELLO or HELLO_RESP of the peer.
+     *
+     * @return what to put into our HELLO_RESP, if we are the one answering
+     */
+    final public long agree(long peerHello){
+        this.version = Math.min(MessageTypes.PROTOCOL_VERSION, MessageTypes.helloVersion(peerHello));
+        this.agreed = this.local & MessageTypes.helloFeatures(peerHello);
+        return MessageTypes.helloWord(this.version, this.agreed);
+    }
+
+    /* the peer does not know the handshake, it speaks the protocol as it was before */
+    final public void legacy(){
+        this.version = MessageTypes.LEGACY_VERSION;
+        this.agreed = 0;
+    }
+
+    /* the handshake itself always uses the fixed header, the peer does not know yet what we speak */
+    final public boolean isCompact(int type){
+        return has(MessageTypes.FEATURE_COMPACT) && type != MessageTypes.HELLO && type != MessageTypes.HELLO_RESP;
+    }
+
+    final public boolean has(long feature){
+        return (this.agreed & feature) != 0;
+    }
+
+    final public int version(){
+        return this.version;
+    }
+
+    final public String toString(){
+        return "version: " + this.version + " local: " + this.local + " agreed: " + this.agreed;
+    }
+}
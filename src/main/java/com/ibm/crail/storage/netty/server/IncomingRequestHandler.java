@@ -24,84 +24,290 @@ package com.ibm.crail.storage.netty.server;
 
 import com.ibm.crail.storage.netty.CrailNettyUtils;
 import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import com.ibm.crail.storage.netty.rpc.RdmaEncoderTx;
 import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
 import com.ibm.crail.storage.netty.rpc.RdmaMsgTx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
-import sun.nio.ch.DirectBuffer;
+
+import java.util.concurrent.ConcurrentHashMap;
 
 public class IncomingRequestHandler extends SimpleChannelInboundHandler<RdmaMsgRx> {
     private NettyStorageServer dataNode;
     final Channel channel;
     static private final Logger LOG = CrailNettyUtils.getLogger();
+    /* open streamed reads of this connection, touched from its event loop or its offload executor */
+    private final ConcurrentHashMap<Long, OutgoingStream> streams;
+    /* large copies of this connection run here instead of on the event loop, if enabled. The decoder
+     * queues the placement of offloaded writes here too, ahead of their processing */
+    private final EventExecutor offload;
+    /* requests handed to the offload executor whose responses are not queued on the channel yet, event loop only */
+    private int offloaded;
+    private final Runnable offloadDone;
+    /* shared with the encoder of this connection */
+    private final WireFeatures features;
+    /* responses that are built off the event loop are checksummed and compressed there as well */
+    private final RdmaEncoderTx encoder;
 
-    public IncomingRequestHandler(Channel channel, NettyStorageServer dataNode){
+    public IncomingRequestHandler(Channel channel, NettyStorageServer dataNode, WireFeatures features, RdmaEncoderTx encoder,
+                                  EventExecutor offload){
         this.dataNode = dataNode;
         this.channel = channel;
+        this.features = features;
+        this.encoder = encoder;
+        this.streams = new ConcurrentHashMap<Long, OutgoingStream>();
+        this.offload = offload;
+        this.offloaded = 0;
+        this.offloadDone = new Runnable() {
+            public void run() {
+                offloaded--;
+            }
+        };
+    }
+
+    /* the client tells its version and what it supports, we answer with what both sides do */
+    private void handleHello(ChannelHandlerContext ctx, RdmaMsgRx rxMsg){
+        long agreed = this.features.agree(rxMsg.address());
+        LOG.debug("Connection " + ctx.channel() + " agreed on " + this.features);
+        RdmaMsgTx txMsg = RdmaMsgTx.newInstance();
+        txMsg.initHeader(agreed, 0, 0, MessageTypes.HELLO_RESP, 0, rxMsg.cookie());
+        ctx.channel().writeAndFlush(txMsg).addListener(txMsg);
+    }
+
+    private void handleStream(ChannelHandlerContext ctx, RdmaMsgRx rxMsg){
+        long cookie = rxMsg.cookie();
+        if(rxMsg.type() == MessageTypes.STREAM_CANCEL) {
+            streams.remove(cookie);
+            return;
+        }
+        if(rxMsg.type() == MessageTypes.STREAM_DEMAND) {
+            OutgoingStream stream = streams.get(cookie);
+            /* the stream may have ended while the demand was on its way */
+            if(stream != null) {
+                stream.addCredit(rxMsg.opLength());
+                pump(cookie, stream);
+            }
+            return;
+        }
+        /* READ_STREAM_REQ */
+        ByteBuf params = rxMsg.takeRxPayload();
+        int length = -1;
+        int chunkSize = -1;
+        int demand = 0;
+        if(params != null) {
+            length = params.readInt();
+            chunkSize = params.readInt();
+            demand = params.readInt();
+            params.release();
+        }
+        StorageRegion region = this.dataNode.stagToRegion(rxMsg.stag());
+        int offset = -1;
+        if(region != null && length >= 0 && chunkSize > 0) {
+            offset = this.dataNode.regionOffset(region, rxMsg.address(), length);
+        }
+        if(offset < 0) {
+            CrailNettyUtils.getLogger().error("Rejecting stream for " + rxMsg);
+            RdmaMsgTx txMsg = RdmaMsgTx.newInstance();
+            txMsg.initHeader(rxMsg.address(), 0, rxMsg.stag(), MessageTypes.STREAM_DATA, -1, cookie);
+            ctx.channel().writeAndFlush(txMsg).addListener(txMsg);
+            return;
+        }
+        OutgoingStream stream = new OutgoingStream(region.getBuffer(), rxMsg.stag(), offset, rxMsg.address(), length, chunkSize, demand);
+        streams.put(cookie, stream);
+        pump(cookie, stream);
     }
 
-    private void handleRead(ChannelHandlerContext ctx, RdmaMsgRx incomingRead, ByteBuf srcBuf){
+    /* sends as many chunks as the client has asked for, and the end of the stream once all is out */
+    private void pump(long cookie, OutgoingStream stream){
+        boolean wrote = false;
+        while (stream.credit > 0 && stream.remaining > 0) {
+            int now = Math.min(stream.chunkSize, stream.remaining);
+            RdmaMsgTx chunk = RdmaMsgTx.newInstance();
+            chunk.initHeader(stream.address, now, stream.stag, MessageTypes.STREAM_DATA, 0, cookie);
+            chunk.referenceTxPayload(stream.region, stream.offset, now);
+            this.channel.write(chunk).addListener(chunk);
+            stream.offset += now;
+            stream.address += now;
+            stream.remaining -= now;
+            stream.credit--;
+            wrote = true;
+        }
+        if(stream.remaining == 0) {
+            /* an empty chunk ends the stream */
+            RdmaMsgTx end = RdmaMsgTx.newInstance();
+            end.initHeader(stream.address, 0, stream.stag, MessageTypes.STREAM_DATA, 0, cookie);
+            this.channel.write(end).addListener(end);
+            streams.remove(cookie);
+            wrote = true;
+        }
+        if(wrote) {
+            this.channel.flush();
+        }
+    }
+
+    private void handleRead(ChannelHandlerContext ctx, RdmaMsgRx incomingRead, StorageRegion region, int offset){
         /* for a read, we need to write the buffer */
-        int offset = (int) (incomingRead.address() - ((DirectBuffer) srcBuf.nioBuffer()).address());
         final RdmaMsgTx readResponse = incomingRead.makeTxMsg(0, MessageTypes.READ_RESP);
-        readResponse.referenceTxPayload(srcBuf, offset, readResponse.opLength());
-        //FIXME:
-        assert ctx.channel() == this.channel;
-        synchronized (this.channel) {
-            /* push the header */
-            this.channel.write(readResponse.getHeaderPayload());
-            /* then data */
-            ctx.channel().writeAndFlush(readResponse.getDataPayload().retain()).addListener(new GenericFutureListener<Future<? super Void>>() {
-                public void operationComplete(Future<? super Void> future) throws Exception {
-                    readResponse.releaseHeaderPayload();
-                    readResponse.releaseTxPayload();
+        if(region.isFileBacked() && !this.features.has(MessageTypes.FEATURE_CRC32C)) {
+            /* straight from the page cache to the socket. With checksums the bytes are read anyway, from the mapping */
+            readResponse.referenceTxFileRegion(region.fileRegion(offset, readResponse.opLength()));
+        } else {
+            readResponse.referenceTxPayload(region.getBuffer(), offset, readResponse.opLength());
+            if(!this.channel.eventLoop().inEventLoop()) {
+                try {
+                    this.encoder.prepare(readResponse);
+                } catch (Exception e) {
+                    /* the encoder tries again, and closes the connection if it fails there too */
+                    LOG.error("Preparing the payload of " + readResponse + " failed: " + e);
                 }
-            });
+            }
         }
+        assert ctx.channel() == this.channel;
+        /* header and data leave as one message */
+        this.channel.writeAndFlush(readResponse).addListener(readResponse);
     }
 
-    private void handleWrite(ChannelHandlerContext ctx, RdmaMsgRx incomingWrite, ByteBuf targetBuf){
-        /* we make the right offset */
-        int offset = (int) (incomingWrite.address() - ((DirectBuffer) targetBuf.nioBuffer()).address());
-        incomingWrite.copyAndReleaseRxPayload(targetBuf.duplicate(), offset);
+    private void handleWrite(ChannelHandlerContext ctx, RdmaMsgRx incomingWrite, ByteBuf targetBuf, int offset){
+        /* the StreamingRequestDecoder has already placed the payload, or queued its placement ahead of us, unless it was accumulated */
+        if(incomingWrite.hasRxPayload()) {
+            incomingWrite.copyAndReleaseRxPayload(targetBuf.duplicate(), offset);
+        }
         final RdmaMsgTx writeResponse = incomingWrite.makeTxMsg(0, MessageTypes.WRITE_RESP);
-        //FIXME:
         assert ctx.channel() == this.channel;
-        synchronized (this.channel) {
-            /* write the header only, there is no payload */
-            this.channel.writeAndFlush(writeResponse.getHeaderPayload()).addListener(new GenericFutureListener<Future<? super Void>>() {
-                public void operationComplete(Future<? super Void> future) throws Exception {
-                    writeResponse.releaseHeaderPayload();
+        /* the header only, there is no payload */
+        this.channel.writeAndFlush(writeResponse).addListener(writeResponse);
+    }
+
+    private void reject(ChannelHandlerContext ctx, RdmaMsgRx rxMsg, int responseType){
+        CrailNettyUtils.getLogger().error("Rejecting stag for " + rxMsg);
+        reply(ctx, rxMsg, responseType, -1);
+    }
+
+    /* the data has not arrived as sent, the client sees the distinct status and can retry */
+    private void rejectChecksum(ChannelHandlerContext ctx, RdmaMsgRx rxMsg, int responseType){
+        CrailNettyUtils.getLogger().error("Checksum mismatch for " + rxMsg);
+        reply(ctx, rxMsg, responseType, MessageTypes.STATUS_CHECKSUM);
+    }
+
+    private void reply(ChannelHandlerContext ctx, RdmaMsgRx rxMsg, int responseType, int status){
+        final RdmaMsgTx txMsg = rxMsg.makeTxMsg(status, responseType);
+        /* an error response is just the header, clients do not expect any payload with it */
+        ctx.channel().writeAndFlush(txMsg).addListener(txMsg);
+    }
+
+    /* all segments of a vectored request are served with one response, or none of them */
+    private void handleVectored(ChannelHandlerContext ctx, RdmaMsgRx rxMsg){
+        if(rxMsg.type() == MessageTypes.READV_REQ) {
+            ByteBuf sources = this.dataNode.segmentsToNettyBuffer(rxMsg, true);
+            if(sources == null) {
+                reject(ctx, rxMsg, MessageTypes.READV_RESP);
+                return;
+            }
+            final RdmaMsgTx readResponse = rxMsg.makeTxMsg(0, MessageTypes.READV_RESP);
+            readResponse.ownTxPayload(sources);
+            this.channel.writeAndFlush(readResponse).addListener(readResponse);
+        } else {
+            /* the StreamingRequestDecoder has already scattered the data, unless it was accumulated */
+            ByteBuf targets = this.dataNode.segmentsToNettyBuffer(rxMsg, false);
+            if(targets == null) {
+                reject(ctx, rxMsg, MessageTypes.WRITEV_RESP);
+                return;
+            }
+            if(rxMsg.isChecksumFailed()) {
+                rejectChecksum(ctx, rxMsg, MessageTypes.WRITEV_RESP);
+                return;
+            }
+            if(rxMsg.hasRxPayload()) {
+                rxMsg.copyAndReleaseRxPayload(targets, 0);
+            }
+            final RdmaMsgTx writeResponse = rxMsg.makeTxMsg(0, MessageTypes.WRITEV_RESP);
+            this.channel.writeAndFlush(writeResponse).addListener(writeResponse);
+        }
+    }
+
+    final protected void channelRead0(final ChannelHandlerContext ctx, final RdmaMsgRx rxMsg) throws Exception {
+        if(rxMsg.type() == MessageTypes.HELLO) {
+            /* always on the event loop, the answer has to be encoded before anything that depends on it */
+            handleHello(ctx, rxMsg);
+            rxMsg.recycle();
+            return;
+        }
+        /* once something is offloaded, everything behind it follows, so that requests stay in order */
+        if(this.offload != null && (this.offloaded > 0 ||
+                this.dataNode.isOffloaded(rxMsg, this.features.has(MessageTypes.FEATURE_SNAPPY)))) {
+            this.offloaded++;
+            this.offload.execute(new Runnable() {
+                public void run() {
+                    try {
+                        process(ctx, rxMsg);
+                    } finally {
+                        /* queued behind the writes of the response, which the event loop runs in order. Only then
+                         * may a request be served inline again, and its response cannot overtake ours */
+                        channel.eventLoop().execute(offloadDone);
+                    }
                 }
             });
+            return;
         }
+        process(ctx, rxMsg);
     }
 
-    final protected void channelRead0(ChannelHandlerContext ctx, RdmaMsgRx rxMsg) throws Exception {
-        ByteBuf buf = this.dataNode.stagToNettyBuffer(rxMsg.stag());
-        if(buf == null) {
-            /* then this was a wrong stag, send back reply */
-            CrailNettyUtils.getLogger().error("Rejecting stag for " + rxMsg);
-            RdmaMsgTx txMsg;
-            if(rxMsg.type() == MessageTypes.READ_REQ){
-                txMsg = rxMsg.makeTxMsg(-1, MessageTypes.READ_RESP);
-            } else {
-                txMsg = rxMsg.makeTxMsg(-1, MessageTypes.WRITE_RESP);
-            }
-            ctx.channel().writeAndFlush(txMsg);
+    private void process(ChannelHandlerContext ctx, RdmaMsgRx rxMsg) {
+        if(rxMsg.type() == MessageTypes.READ_STREAM_REQ || rxMsg.type() == MessageTypes.STREAM_DEMAND ||
+                rxMsg.type() == MessageTypes.STREAM_CANCEL) {
+            handleStream(ctx, rxMsg);
+            rxMsg.recycle();
+            return;
+        }
+        if(MessageTypes.hasSegments(rxMsg.type())) {
+            handleVectored(ctx, rxMsg);
+            rxMsg.recycle();
+            return;
+        }
+        StorageRegion region = this.dataNode.stagToRegion(rxMsg.stag());
+        int offset = (region == null) ? -1 : region.offsetOf(rxMsg.address(), rxMsg.opLength());
+        if(offset < 0) {
+            /* then this was a wrong stag or range, send back reply */
+            reject(ctx, rxMsg, rxMsg.type() == MessageTypes.READ_REQ ? MessageTypes.READ_RESP : MessageTypes.WRITE_RESP);
+            rxMsg.recycle();
+            return;
+        }
+        if(rxMsg.isChecksumFailed()) {
+            /* checksummed payloads stay in their scratch buffer until verified, nothing of it has reached the region */
+            rejectChecksum(ctx, rxMsg, MessageTypes.WRITE_RESP);
+            rxMsg.recycle();
             return;
         }
         /* we make duplicate as there can be multiple reqs concurrently on the buffer */
         if(rxMsg.type() == MessageTypes.READ_REQ){
-            handleRead(ctx, rxMsg, buf);
+            handleRead(ctx, rxMsg, region, offset);
         } else {
-            handleWrite(ctx, rxMsg, buf);
+            handleWrite(ctx, rxMsg, region.getBuffer(), offset);
         }
+        rxMsg.recycle();
+    }
+
+    @Override
+    final public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        /* stop taking requests from a client that does not take our responses */
+        boolean writable = ctx.channel().isWritable();
+        ctx.channel().config().setAutoRead(writable);
+        if(!writable) {
+            LOG.debug("Pausing reads on " + ctx.channel() + ", its responses are above the high watermark");
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    final public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        /* nobody is left to send the rest of the streams to */
+        streams.clear();
+        super.channelInactive(ctx);
     }
 
     @Override
@@ -27,23 +27,31 @@ import com.ibm.crail.storage.StorageResource;
 import com.ibm.crail.storage.StorageServer;
 import com.ibm.crail.storage.netty.CrailNettyUtils;
 import com.ibm.crail.storage.netty.NettyConstants;
-import com.ibm.crail.storage.netty.rpc.RdmaDecoderRx;
+import com.ibm.crail.storage.netty.NettyTransport;
+import com.ibm.crail.storage.netty.rpc.CompressionStats;
+import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import com.ibm.crail.storage.netty.rpc.RdmaEncoderTx;
+import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 import org.slf4j.Logger;
-import sun.nio.ch.DirectBuffer;
 
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
-import static io.netty.buffer.Unpooled.directBuffer;
 
 
 /**
@@ -52,7 +60,20 @@ import static io.netty.buffer.Unpooled.directBuffer;
 public class NettyStorageServer implements Runnable, StorageServer {
     private static final Logger LOG = CrailNettyUtils.getLogger();
     private InetSocketAddress inetSocketAddress;
-    private ConcurrentHashMap<Integer, ByteBuf> map;
+    /* indexed by stag, stags are handed out densely from 1. Grown by doubling, and published again
+     * after every allocation */
+    private volatile StorageRegion[] regions;
+    private int maxEntries;
+    /* the backing file of all regions, if they are file backed */
+    private FileChannel backingFile;
+    /* decides when the pages of the regions are faulted in */
+    private RegionProvisioner provisioner;
+    /* copies of large writes, off the event loops. null if disabled */
+    private EventExecutorGroup offloadGroup;
+    /* whether large write copies go there, the group may also be there only to compress reads */
+    private boolean offloadCopies;
+    private int offloadThreshold;
+    private int compressionThreshold;
     private int currentStag;
     private boolean isRunning;
     private long allocated;
@@ -69,13 +90,38 @@ public class NettyStorageServer implements Runnable, StorageServer {
         NettyConstants conf = NettyConstants.get();
         this.inetSocketAddress = conf.getNettyDataNodeAddress();
         assert this.inetSocketAddress != null;
-        this.map = null;
+        this.regions = null;
         /* we start with 1 stag, and then every time we allocate a new block we increment it by 1 */
         this.currentStag = 1;
         this.isRunning = false;
         this.allocated = 0;
-        int entries = (int) (conf.getStorageLimit() / conf.getAllocationSize());
-        this.map = new ConcurrentHashMap<Integer, ByteBuf>(entries);
+        int entries = (int) ((conf.getStorageLimit() + conf.getAllocationSize() - 1) / conf.getAllocationSize());
+        this.maxEntries = entries;
+        this.regions = new StorageRegion[1];
+        this.backingFile = null;
+        if(conf.isFileBackend()) {
+            RandomAccessFile raf = new RandomAccessFile(conf.getBackendFile(), "rw");
+            /* space for all regions up front, the file system can keep it sparse */
+            raf.setLength(conf.getStorageLimit());
+            this.backingFile = raf.getChannel();
+            LOG.info("Regions are backed by " + conf.getBackendFile() + " of " + conf.getStorageLimit() + " bytes");
+        }
+        this.offloadGroup = null;
+        this.offloadCopies = conf.getOffloadThreads() > 0;
+        this.offloadThreshold = conf.getOffloadThreshold();
+        this.compressionThreshold = conf.getCompressionThreshold();
+        /* compressing a read response is too much work for the event loop as well */
+        int offloadThreads = this.offloadCopies ? conf.getOffloadThreads() :
+                (conf.isCompressionEnabled() ? Runtime.getRuntime().availableProcessors() : 0);
+        if(offloadThreads > 0) {
+            this.offloadGroup = new DefaultEventExecutorGroup(offloadThreads,
+                    new DefaultThreadFactory("crail-netty-offload", true));
+            LOG.info("Offloading " + (this.offloadCopies ? "writes of " + this.offloadThreshold + " bytes or more, " : "") +
+                    (conf.isCompressionEnabled() ? "compressed reads of " + this.compressionThreshold + " bytes or more, " : "") +
+                    "to " + offloadThreads + " threads");
+        }
+        this.provisioner = new RegionProvisioner(conf.getProvisioning(), this.backingFile,
+                (int) conf.getAllocationSize(), entries, conf.getPrefaultThreads());
         LOG.info(" constructor, alloc size " + conf.getAllocationSize() +
                 " limit " + conf.getStorageLimit() +
                 " gives #entries " + entries);
@@ -84,13 +130,14 @@ public class NettyStorageServer implements Runnable, StorageServer {
 
     final public void run() {
         /* start the netty server */
-        EventLoopGroup acceptGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        NettyTransport transport = NettyTransport.select();
+        EventLoopGroup acceptGroup = transport.newEventLoopGroup();
+        EventLoopGroup workerGroup = transport.newEventLoopGroup();
         try {
             ServerBootstrap boot = new ServerBootstrap();
             boot.group(acceptGroup, workerGroup);
             /* we use sockets */
-            boot.channel(NioServerSocketChannel.class);
+            boot.channel(transport.serverSocketChannel());
             /* for new incoming connection */
             final NettyStorageServer currentObj = this;
             boot.childHandler(new ChannelInitializer<SocketChannel>() {
@@ -98,22 +145,32 @@ public class NettyStorageServer implements Runnable, StorageServer {
                 public void initChannel(SocketChannel ch) throws Exception {
                     LOG.info("TID: " + Thread.currentThread().getId() +
                             " , a new client connection has arrived from : " + ch.remoteAddress().toString());
+                    /* compression, checksums and the compact header, once the client has asked for them */
+                    WireFeatures features = new WireFeatures(NettyConstants.get().isCompressionEnabled(),
+                            NettyConstants.get().isChecksumEnabled(), NettyConstants.get().isCompactHeader());
+                            /* outgoing pipeline */
+                    RdmaEncoderTx encoder = new RdmaEncoderTx(features, NettyConstants.get().getCompressionThreshold());
+                    /* one executor per connection, picked from the pool */
+                    EventExecutor offload = (offloadGroup == null) ? null : offloadGroup.next();
+                    ch.pipeline().addLast(encoder);
                             /* incoming pipeline */
                     ch.pipeline().addLast(
-                            new RdmaDecoderRx(), /* this makes full RDMA messages */
-                            new IncomingRequestHandler(ch, currentObj));
-                            /* outgoing pipeline */
-                    //ch.pipeline().addLast(new RdmaEncoderTx());
+                            new StreamingRequestDecoder(currentObj, features, offload), /* this makes full RDMA messages, writes land in place */
+                            new IncomingRequestHandler(ch, currentObj, features, encoder, offload));
                 }
             });
             this.isRunning = true;
             /* general optimization settings */
             boot.option(ChannelOption.SO_BACKLOG, 1024);
             boot.childOption(ChannelOption.SO_KEEPALIVE, true);
+            /* high first, netty refuses a low watermark above the current high one */
+            boot.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, NettyConstants.get().getWatermarkHigh());
+            boot.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, NettyConstants.get().getWatermarkLow());
+            transport.configure(boot);
             /* now we bind the server and start */
             ChannelFuture f = boot.bind(this.inetSocketAddress.getAddress(),
                     this.inetSocketAddress.getPort()).sync();
-            LOG.info("NettyStorageServer is binded to : " + this.inetSocketAddress);
+            LOG.info("NettyStorageServer is binded to : " + this.inetSocketAddress + " transport : " + transport);
             /* at this point we are binded and ready */
             f.channel().closeFuture().sync();
         } catch (InterruptedException e) {
@@ -121,25 +178,35 @@ public class NettyStorageServer implements Runnable, StorageServer {
         } finally {
             workerGroup.shutdownGracefully();
             acceptGroup.shutdownGracefully();
+            if(this.offloadGroup != null) {
+                this.offloadGroup.shutdownGracefully();
+            }
+            if(NettyConstants.get().isCompressionEnabled()) {
+                LOG.info("Payload compression " + CompressionStats.get());
+            }
             LOG.info("NettyStorageServer at " + this.inetSocketAddress + " is shutdown");
             this.isRunning = false;
         }
     }
 
-    final public StorageResource allocateResource() throws Exception {
+    final synchronized public StorageResource allocateResource() throws Exception {
         double perc;
         StorageResource res = null;
         NettyConstants conf = NettyConstants.get();
         /* Have we already allocated all? then return null */
         if(allocated < conf.getStorageLimit()) {
-            /* allocate a new buffer */
-            ByteBuf buf = directBuffer((int) conf.getAllocationSize(),
-                    (int) conf.getAllocationSize());
-            /* retain this buffer */
-            buf.retain();
-            Long address = ((DirectBuffer) buf.nioBuffer()).address();
-            /* update entries */
-            map.put(this.currentStag, buf);
+            /* a new region, in memory or the next slice of the file */
+            StorageRegion region = this.provisioner.next(this.currentStag, allocated);
+            ByteBuf buf = region.getBuffer();
+            Long address = region.getAddress();
+            /* update entries, the lookups see either the old or the new table, both complete */
+            StorageRegion[] table = this.regions;
+            if(this.currentStag >= table.length) {
+                table = Arrays.copyOf(table, Math.min(Math.max(2 * table.length, this.currentStag + 1), this.maxEntries + 1));
+            }
+            table[this.currentStag] = region;
+            /* the volatile write publishes the new entry also when the table was not replaced */
+            this.regions = table;
             res = StorageResource.createResource(address,
                     (int) conf.getAllocationSize(),
                     this.currentStag);
@@ -169,7 +236,91 @@ public class NettyStorageServer implements Runnable, StorageServer {
      * @return ByteBuffer or NULL
      */
     public ByteBuf stagToNettyBuffer(int stag) {
-        return map.getOrDefault(stag, null);
+        StorageRegion region = stagToRegion(stag);
+        return (region == null) ? null : region.getBuffer();
+    }
+
+    final EventExecutorGroup getOffloadGroup() {
+        return this.offloadGroup;
+    }
+
+    /**
+     * Large enough to be worth taking off the event loop: the copy of a large write, or a read whose
+     * response gets compressed.
+     *
+     * @param compressed Whether the connection of the request has agreed on compression.
+     */
+    final boolean isOffloaded(RdmaMsgRx msg, boolean compressed) {
+        if(this.offloadGroup == null) {
+            return false;
+        }
+        if(msg.type() == MessageTypes.WRITE_REQ) {
+            return this.offloadCopies && msg.opLength() >= this.offloadThreshold;
+        }
+        return compressed && msg.type() == MessageTypes.READ_REQ && msg.opLength() >= this.compressionThreshold;
+    }
+
+    /**
+     * Look up the region of a given stag
+     *
+     * @param stag The stag for which to look up the region.
+     *
+     * @return StorageRegion or NULL
+     */
+    public StorageRegion stagToRegion(int stag) {
+        StorageRegion[] table = this.regions;
+        /* stag 0 and negative stags are never handed out */
+        if(stag <= 0 || stag >= table.length) {
+            return null;
+        }
+        return table[stag];
+    }
+
+    /**
+     * Translates a remote address into an offset within the region, checking the bounds.
+     *
+     * @param region The region as returned by stagToRegion.
+     * @param address The address the client wants to access.
+     * @param length The number of bytes to access.
+     *
+     * @return offset in the region or -1 if the range does not fit in the region
+     */
+    public int regionOffset(StorageRegion region, long address, int length) {
+        return region.offsetOf(address, length);
+    }
+
+    /**
+     * Maps all segments of a vectored request to the storage they refer to, in segment order.
+     *
+     * @param msg A READV_REQ or WRITEV_REQ with its segments decoded.
+     * @param retain Whether the returned buffer holds its own reference on the regions, so
+     *               that it can be released, e.g. once sent out.
+     *
+     * @return one buffer spanning all segments, or null if any segment is invalid
+     */
+    public ByteBuf segmentsToNettyBuffer(RdmaMsgRx msg, boolean retain) {
+        int count = msg.segments();
+        long total = 0;
+        ByteBuf[] parts = new ByteBuf[count];
+        for (int i = 0; i < count; i++) {
+            StorageRegion region = stagToRegion(msg.segmentStag(i));
+            int offset = (region == null) ? -1 : region.offsetOf(msg.segmentAddress(i), msg.segmentLength(i));
+            if(offset < 0) {
+                return null;
+            }
+            total += msg.segmentLength(i);
+            /* slices share the refcount of the region */
+            parts[i] = region.getBuffer().slice(offset, msg.segmentLength(i));
+        }
+        if(total != msg.opLength()) {
+            return null;
+        }
+        if(retain) {
+            for (ByteBuf part : parts) {
+                part.retain();
+            }
+        }
+        return Unpooled.wrappedBuffer(count, parts);
     }
 
     public void init(CrailConfiguration crailConfiguration, String[] strings) throws Exception {
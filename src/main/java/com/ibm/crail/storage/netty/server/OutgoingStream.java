@@ -0,0 +1,53 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.server;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Server side state of a streamed read: where the next chunk starts, what is left, and how
+ * many chunks the client is still willing to take.
+ */
+class OutgoingStream {
+    final ByteBuf region;
+    final int stag;
+    final int chunkSize;
+    int offset;
+    long address;
+    int remaining;
+    long credit;
+
+    OutgoingStream(ByteBuf region, int stag, int offset, long address, int remaining, int chunkSize, long credit){
+        this.region = region;
+        this.stag = stag;
+        this.offset = offset;
+        this.address = address;
+        this.remaining = remaining;
+        this.chunkSize = chunkSize;
+        this.credit = credit;
+    }
+
+    final void addCredit(long n){
+        credit = (credit + n < 0) ? Long.MAX_VALUE : credit + n;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.server;
+
+import com.ibm.crail.storage.netty.CrailNettyUtils;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the regions of the datanode and decides when their pages are faulted in:
+ * <ul>
+ * <li>lazy: regions are registered right away and the first writes of the clients fault in the pages.</li>
+ * <li>eager: all regions are pre-faulted by parallel workers before the first one is registered.</li>
+ * <li>hybrid: all regions are pre-faulted in the background, each one is registered as soon as its own
+ * pages are in, so the datanode joins early and clients never touch a cold page.</li>
+ * </ul>
+ */
+class RegionProvisioner {
+    private static final Logger LOG = CrailNettyUtils.getLogger();
+    private static final int PAGE_SIZE = 4096;
+    /* allocates memory without touching it, null if the JVM does not let us at it */
+    private static final Unsafe UNSAFE;
+    /* DirectByteBuffer(long, int), to wrap that memory up to Java 8 */
+    private static final Constructor<?> DIRECT_BUFFER_CONSTRUCTOR;
+    /* from Java 9 on the constructor is closed, the fields of an uninitialized instance are set instead */
+    private static final long ADDRESS_OFFSET;
+    private static final long CAPACITY_OFFSET;
+    private static final long LIMIT_OFFSET;
+    private static final long MARK_OFFSET;
+
+    static {
+        Unsafe unsafe = null;
+        Constructor<?> constructor = null;
+        long address = -1, capacity = -1, limit = -1, mark = -1;
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+        } catch (Throwable t) {
+            unsafe = null;
+        }
+        if(unsafe != null) {
+            try {
+                constructor = ByteBuffer.allocateDirect(0).getClass().getDeclaredConstructor(long.class, int.class);
+                constructor.setAccessible(true);
+            } catch (Throwable t) {
+                constructor = null;
+            }
+        }
+        if(unsafe != null && constructor == null) {
+            try {
+                address = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+                capacity = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("capacity"));
+                limit = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("limit"));
+                mark = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("mark"));
+            } catch (Throwable t) {
+                unsafe = null;
+            }
+        }
+        UNSAFE = unsafe;
+        DIRECT_BUFFER_CONSTRUCTOR = constructor;
+        ADDRESS_OFFSET = address;
+        CAPACITY_OFFSET = capacity;
+        LIMIT_OFFSET = limit;
+        MARK_OFFSET = mark;
+    }
+
+    private final String mode;
+    private final FileChannel backingFile;
+    private final int regionSize;
+    private final int regionCount;
+    private final int threads;
+    private ExecutorService workers;
+    /* eager and hybrid: all regions are created up front, with the latch of their pre-fault */
+    private ArrayList<StorageRegion> regions;
+    private ArrayList<CountDownLatch> faulted;
+    private final AtomicLong faultedBytes;
+    private long startNs;
+
+    RegionProvisioner(String mode, FileChannel backingFile, int regionSize, int regionCount, int threads){
+        this.mode = mode.toLowerCase();
+        this.backingFile = backingFile;
+        this.regionSize = regionSize;
+        this.regionCount = regionCount;
+        this.threads = threads;
+        this.workers = null;
+        this.regions = null;
+        this.faulted = null;
+        this.faultedBytes = new AtomicLong(0);
+        if(!this.mode.equals("lazy") && UNSAFE == null && backingFile == null) {
+            LOG.warn("Direct memory can only be allocated zeroed on this JVM, the allocating thread touches " +
+                    "every page and the pre-fault does not run in parallel");
+        }
+    }
+
+    /* a direct buffer over memory from Unsafe, which does not touch its pages */
+    private static ByteBuffer wrap(long address, int size) throws Exception {
+        if(DIRECT_BUFFER_CONSTRUCTOR != null) {
+            return (ByteBuffer) DIRECT_BUFFER_CONSTRUCTOR.newInstance(address, size);
+        }
+        Object buffer = UNSAFE.allocateInstance(ByteBuffer.allocateDirect(0).getClass());
+        UNSAFE.putLong(buffer, ADDRESS_OFFSET, address);
+        UNSAFE.putInt(buffer, CAPACITY_OFFSET, size);
+        UNSAFE.putInt(buffer, LIMIT_OFFSET, size);
+        UNSAFE.putInt(buffer, MARK_OFFSET, -1);
+        /* the field initializers did not run, this sets the byte order fields */
+        return ((ByteBuffer) buffer).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private ByteBuffer untouchedMemory(int size) {
+        if(UNSAFE != null) {
+            long address = UNSAFE.allocateMemory(size);
+            try {
+                /* regions live as long as the datanode, the memory is never freed */
+                return wrap(address, size);
+            } catch (Exception e) {
+                UNSAFE.freeMemory(address);
+                LOG.warn("Could not wrap untouched memory, falling back to zeroed direct buffers: " + e);
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private StorageRegion create(int stag, long position) throws IOException {
+        if(backingFile != null) {
+            return StorageRegion.inFile(stag, backingFile, position, regionSize);
+        }
+        return StorageRegion.inMemory(stag, untouchedMemory(regionSize));
+    }
+
+    /* writes every page with what is already there, the region is not visible to clients yet */
+    private static void touch(ByteBuffer memory, int from, int to) {
+        for (int i = from; i < to; i += PAGE_SIZE) {
+            memory.put(i, memory.get(i));
+        }
+    }
+
+    /* splits the region over the workers, the latch opens once all pieces are done */
+    private CountDownLatch prefault(final StorageRegion region) {
+        final ByteBuffer memory = region.getBuffer().nioBuffer(0, region.getLength());
+        final int pieces = Math.max(1, Math.min(threads, region.getLength() / PAGE_SIZE));
+        final int pieceSize = (region.getLength() / pieces + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        final CountDownLatch done = new CountDownLatch(pieces);
+        for (int p = 0; p < pieces; p++) {
+            final int from = p * pieceSize;
+            final int to = Math.min(region.getLength(), from + pieceSize);
+            workers.execute(new Runnable() {
+                public void run() {
+                    touch(memory.duplicate(), from, to);
+                    long total = faultedBytes.addAndGet(to - from);
+                    done.countDown();
+                    if(done.getCount() == 0) {
+                        LOG.info("Pre-faulted region stag " + region.getStag() + ", progress " +
+                                (total * 100 / ((long) regionSize * regionCount)) + "% (" + total + " bytes) after " +
+                                (System.nanoTime() - startNs) / 1000000 + " ms");
+                    }
+                }
+            });
+        }
+        return done;
+    }
+
+    private void provisionAll() throws IOException {
+        startNs = System.nanoTime();
+        workers = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("crail-netty-prefault", true));
+        regions = new ArrayList<StorageRegion>(regionCount);
+        faulted = new ArrayList<CountDownLatch>(regionCount);
+        for (int i = 0; i < regionCount; i++) {
+            StorageRegion region = create(i + 1, (long) i * regionSize);
+            regions.add(region);
+            faulted.add(prefault(region));
+        }
+        workers.shutdown();
+        LOG.info("Provisioning " + regionCount + " regions of " + regionSize + " bytes (" + mode + ") with " +
+                threads + " threads");
+    }
+
+    /**
+     * Hands out the region for the stag, ready to be registered with the namenode.
+     *
+     * @param stag The stag of the region, regions are handed out in stag order from 1.
+     * @param position Where the region starts within the storage limit.
+     */
+    final StorageRegion next(int stag, long position) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        StorageRegion region;
+        if(mode.equals("lazy")) {
+            region = create(stag, position);
+        } else {
+            if(regions == null) {
+                provisionAll();
+                if(mode.equals("eager")) {
+                    for (CountDownLatch latch : faulted) {
+                        latch.await();
+                    }
+                    LOG.info("Pre-faulted all " + regionCount + " regions in " +
+                            (System.nanoTime() - startNs) / 1000000 + " ms");
+                }
+            }
+            faulted.get(stag - 1).await();
+            region = regions.get(stag - 1);
+        }
+        LOG.info("Provisioned region stag " + stag + " (" + mode + ") in " + (System.nanoTime() - start) / 1000 + " us");
+        return region;
+    }
+}
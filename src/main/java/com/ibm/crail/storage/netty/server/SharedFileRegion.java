@@ -0,0 +1,43 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.server;
+
+import io.netty.channel.DefaultFileRegion;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A file region over the backing file of the datanode. Unlike DefaultFileRegion, it leaves
+ * the file open when it is released, as all regions of the datanode share the same file.
+ */
+public class SharedFileRegion extends DefaultFileRegion {
+
+    public SharedFileRegion(FileChannel file, long position, long count){
+        super(file, position, count);
+    }
+
+    @Override
+    protected void deallocate() {
+        /* the file belongs to the datanode, not to this transfer */
+    }
+}
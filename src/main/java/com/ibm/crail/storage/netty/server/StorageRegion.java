@@ -0,0 +1,117 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One allocation of the datanode, identified by its stag. It lives either in memory or in a
+ * slice of the backing file, mapped into memory. Writes always go through the buffer, reads
+ * of a file backed region can be sent straight from the page cache.
+ */
+public class StorageRegion {
+    private final int stag;
+    private final ByteBuf buffer;
+    private final long address;
+    private final int length;
+    private final FileChannel file;
+    private final long filePosition;
+
+    private StorageRegion(int stag, ByteBuf buffer, FileChannel file, long filePosition){
+        this.stag = stag;
+        this.buffer = buffer;
+        /* computed once, requests only compare against these */
+        this.address = ((DirectBuffer) buffer.nioBuffer()).address();
+        this.length = buffer.capacity();
+        this.file = file;
+        this.filePosition = filePosition;
+    }
+
+    public static StorageRegion inMemory(int stag, ByteBuffer memory){
+        ByteBuf buf = Unpooled.wrappedBuffer(memory);
+        buf.clear();
+        /* retain this buffer */
+        buf.retain();
+        return new StorageRegion(stag, buf, null, -1);
+    }
+
+    public static StorageRegion inFile(int stag, FileChannel file, long position, int size) throws IOException {
+        MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_WRITE, position, size);
+        ByteBuf buf = Unpooled.wrappedBuffer(mapped);
+        /* the region is handed out empty, writes fill it */
+        buf.clear();
+        buf.retain();
+        return new StorageRegion(stag, buf, file, position);
+    }
+
+    final public int getStag(){
+        return this.stag;
+    }
+
+    final public ByteBuf getBuffer(){
+        return this.buffer;
+    }
+
+    final public long getAddress(){
+        return this.address;
+    }
+
+    final public int getLength(){
+        return this.length;
+    }
+
+    /**
+     * Translates a remote address into an offset within the region, checking the bounds.
+     *
+     * @return offset in the region or -1 if [address, address + length) is not inside the region
+     */
+    final public int offsetOf(long address, int length){
+        long offset = address - this.address;
+        if(offset < 0 || length < 0 || offset + length > this.length) {
+            return -1;
+        }
+        return (int) offset;
+    }
+
+    final public boolean isFileBacked(){
+        return this.file != null;
+    }
+
+    /* a sendfile capable view of [offset, offset + length) of a file backed region */
+    final public FileRegion fileRegion(int offset, int length){
+        return new SharedFileRegion(this.file, this.filePosition + offset, length);
+    }
+
+    final public String toString(){
+        return "stag: " + stag + " address: " + Long.toHexString(address) + " length: " + getLength() +
+                (isFileBacked() ? " file offset: " + filePosition : " memory");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.server;
+
+import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import com.ibm.crail.storage.netty.rpc.RdmaDecoderRx;
+import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * Server side decoder that places WRITE_REQ payloads directly into the target storage
+ * region at the right offset while the bytes are arriving. Nothing of the payload is
+ * accumulated or copied a second time, except for checksummed payloads, which are
+ * summed on their way into a scratch buffer and verified before they touch the region. Large writes are placed the same way, only by
+ * the offload executor of the connection, chunk by chunk as they arrive.
+ */
+public class StreamingRequestDecoder extends RdmaDecoderRx {
+    private NettyStorageServer dataNode;
+    /* shared with the IncomingRequestHandler of the connection, null if offloading is off */
+    private final EventExecutor offload;
+    /* where the chunks of the offloaded write at hand go */
+    private ByteBuf placing;
+    private int placingAt;
+
+    public StreamingRequestDecoder(NettyStorageServer dataNode, WireFeatures features, EventExecutor offload){
+        super(features);
+        this.dataNode = dataNode;
+        this.offload = offload;
+        this.placing = null;
+    }
+
+    /* a private view of the region, as there can be multiple writes concurrently on it. Null if the range is wrong */
+    private ByteBuf target(RdmaMsgRx rxMsg){
+        StorageRegion region = this.dataNode.stagToRegion(rxMsg.stag());
+        if(region == null) {
+            /* the request handler sends back the error */
+            return null;
+        }
+        int offset = this.dataNode.regionOffset(region, rxMsg.address(), rxMsg.opLength());
+        if(offset < 0) {
+            return null;
+        }
+        ByteBuf target = region.getBuffer().duplicate();
+        target.clear().writerIndex(offset);
+        return target;
+    }
+
+    @Override
+    final protected ByteBuf payloadSink(RdmaMsgRx rxMsg) {
+        if(rxMsg.hasChecksum() && !rxMsg.isCompressed()) {
+            if(rxMsg.type() != MessageTypes.WRITE_REQ && rxMsg.type() != MessageTypes.WRITEV_REQ) {
+                return null;
+            }
+            /* the sum is only known once the last byte is in, by then a streamed payload would have
+             * overwritten the region. It is summed on its way into a scratch buffer instead, and the
+             * handler copies it into the region once it has checked out */
+            ByteBuf scratch = PooledByteBufAllocator.DEFAULT.directBuffer(rxMsg.opLength(), rxMsg.opLength());
+            rxMsg.fillRxPayload(scratch);
+            return scratch;
+        }
+        if(rxMsg.type() == MessageTypes.WRITEV_REQ) {
+            /* the segments are scattered over the regions in one go */
+            ByteBuf targets = this.dataNode.segmentsToNettyBuffer(rxMsg, false);
+            if(targets == null) {
+                return DISCARD;
+            }
+            return targets.clear();
+        }
+        if(rxMsg.type() != MessageTypes.WRITE_REQ) {
+            return null;
+        }
+        if(this.offload != null && this.dataNode.isOffloaded(rxMsg, false)) {
+            /* large writes are placed by the offload executor, see streamsPayload() */
+            return null;
+        }
+        ByteBuf target = target(rxMsg);
+        return (target == null) ? DISCARD : target;
+    }
+
+    @Override
+    final protected boolean streamsPayload(RdmaMsgRx rxMsg) {
+        if(rxMsg.type() != MessageTypes.WRITE_REQ || rxMsg.hasChecksum() || this.offload == null ||
+                !this.dataNode.isOffloaded(rxMsg, false)) {
+            return false;
+        }
+        this.placing = target(rxMsg);
+        if(this.placing != null) {
+            this.placingAt = this.placing.writerIndex();
+        }
+        return true;
+    }
+
+    /**
+     * Queued on the executor the request handler hands the message to once it is complete, so
+     * all of it is in the region before the response is sent.
+     */
+    @Override
+    final protected void payloadChunk(RdmaMsgRx rxMsg, final ByteBuf chunk, int position) {
+        if(this.placing == null) {
+            chunk.release();
+            return;
+        }
+        final ByteBuf target = this.placing;
+        final int at = this.placingAt + position;
+        this.offload.execute(new Runnable() {
+            public void run() {
+                try {
+                    target.setBytes(at, chunk);
+                } finally {
+                    chunk.release();
+                }
+            }
+        });
+    }
+}
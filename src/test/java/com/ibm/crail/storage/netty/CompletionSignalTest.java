@@ -0,0 +1,165 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wake-ups of CompletionSignal, with and without a spin budget.
+ */
+public class CompletionSignalTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        CompletionSignal.setSpinBudget(0);
+    }
+
+    public void testSignalBeforeAwait() throws Exception {
+        CompletionSignal signal = new CompletionSignal();
+        assertFalse(signal.isDone());
+        signal.signal();
+        assertTrue(signal.isDone());
+        assertTrue(signal.await(0));
+        assertTrue(signal.await(-1));
+    }
+
+    public void testTimeout() throws Exception {
+        CompletionSignal signal = new CompletionSignal();
+        long start = System.nanoTime();
+        assertFalse(signal.await(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    private void wakesUp(long spinNanos) throws Exception {
+        CompletionSignal.setSpinBudget(spinNanos);
+        final CompletionSignal signal = new CompletionSignal();
+        Thread completer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    /* signal early then */
+                }
+                signal.signal();
+            }
+        };
+        completer.start();
+        assertTrue(signal.await(TimeUnit.SECONDS.toNanos(10)));
+        completer.join();
+    }
+
+    public void testWakesParkedWaiter() throws Exception {
+        wakesUp(0);
+    }
+
+    public void testWakesSpinningWaiter() throws Exception {
+        wakesUp(TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /* only one waiter registers to be unparked, the others wait on the monitor */
+    public void testSeveralWaiters() throws Exception {
+        final CompletionSignal signal = new CompletionSignal();
+        final boolean[] woken = new boolean[3];
+        Thread[] waiters = new Thread[woken.length];
+        for (int i = 0; i < waiters.length; i++) {
+            final int index = i;
+            waiters[i] = new Thread() {
+                public void run() {
+                    try {
+                        woken[index] = signal.await(-1);
+                    } catch (InterruptedException e) {
+                        woken[index] = false;
+                    }
+                }
+            };
+            waiters[i].start();
+        }
+        /* all of them wait without a timeout, none of them polls */
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (Thread waiter : waiters) {
+            while (waiter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Thread.State.WAITING, waiter.getState());
+        }
+        signal.signal();
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i].join(10000);
+            assertFalse(waiters[i].isAlive());
+            assertTrue(woken[i]);
+        }
+    }
+
+    public void testSeveralTimedWaiters() throws Exception {
+        final CompletionSignal signal = new CompletionSignal();
+        final boolean[] woken = new boolean[3];
+        Thread[] waiters = new Thread[woken.length];
+        for (int i = 0; i < waiters.length; i++) {
+            final int index = i;
+            waiters[i] = new Thread() {
+                public void run() {
+                    try {
+                        woken[index] = signal.await(TimeUnit.SECONDS.toNanos(10));
+                    } catch (InterruptedException e) {
+                        woken[index] = false;
+                    }
+                }
+            };
+            waiters[i].start();
+        }
+        Thread.sleep(20);
+        signal.signal();
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i].join();
+            assertTrue(woken[i]);
+        }
+        /* and a timeout still ends the wait of those on the monitor */
+        final CompletionSignal never = new CompletionSignal();
+        Thread first = new Thread() {
+            public void run() {
+                try {
+                    never.await(TimeUnit.MILLISECONDS.toNanos(200));
+                } catch (InterruptedException e) {
+                    /* done anyway */
+                }
+            }
+        };
+        first.start();
+        Thread.sleep(20);
+        assertFalse(never.await(TimeUnit.MILLISECONDS.toNanos(50)));
+        first.join();
+    }
+
+    public void testInterrupt() throws Exception {
+        CompletionSignal signal = new CompletionSignal();
+        Thread.currentThread().interrupt();
+        try {
+            signal.await(-1);
+            fail("not interrupted");
+        } catch (InterruptedException e) {
+            /* expected */
+        }
+    }
+}
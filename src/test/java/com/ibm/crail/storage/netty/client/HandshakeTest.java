@@ -0,0 +1,105 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import com.ibm.crail.storage.netty.rpc.MessageTypes;
+import com.ibm.crail.storage.netty.rpc.RdmaMsgRx;
+import com.ibm.crail.storage.netty.rpc.RdmaMsgTx;
+import com.ibm.crail.storage.netty.rpc.WireFeatures;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import junit.framework.TestCase;
+
+/**
+ * The client side of the handshake in IncomingResponseHandler: the HELLO, the answer, and the
+ * fallback to the old protocol when no answer comes.
+ */
+public class HandshakeTest extends TestCase {
+    private WireFeatures features;
+    private Promise<Void> handshake;
+    private EmbeddedChannel channel;
+
+    private void connect(long timeout){
+        features = new WireFeatures(true, true, true);
+        handshake = new DefaultPromise<Void>(GlobalEventExecutor.INSTANCE);
+        channel = new EmbeddedChannel(new IncomingResponseHandler(new InflightTable(4), new StreamTable(),
+                new WriteGate(1 << 20, false), features, handshake, timeout));
+        /* the HELLO goes out first */
+        assertTrue(channel.readOutbound() instanceof RdmaMsgTx);
+        assertNull(channel.readOutbound());
+    }
+
+    private void answer(long word, int status){
+        RdmaMsgRx rxMsg = RdmaMsgRx.newInstance();
+        rxMsg.initHeader(word, 0, 0, MessageTypes.HELLO_RESP, status, MessageTypes.HELLO_COOKIE);
+        channel.writeInbound(rxMsg);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.finish();
+    }
+
+    public void testAnswer() throws Exception {
+        connect(60000);
+        assertFalse(handshake.isDone());
+        answer(new WireFeatures(false, true, true).agree(features.hello()), 0);
+        assertTrue(handshake.isSuccess());
+        assertEquals(MessageTypes.PROTOCOL_VERSION, features.version());
+        assertTrue(features.has(MessageTypes.FEATURE_CRC32C));
+        assertTrue(features.has(MessageTypes.FEATURE_COMPACT));
+        assertFalse(features.has(MessageTypes.FEATURE_SNAPPY));
+    }
+
+    public void testRejected() throws Exception {
+        connect(60000);
+        answer(0, -1);
+        assertTrue(handshake.isSuccess());
+        assertEquals(MessageTypes.LEGACY_VERSION, features.version());
+    }
+
+    public void testNoAnswer() throws Exception {
+        connect(20);
+        Thread.sleep(50);
+        channel.runPendingTasks();
+        assertTrue(handshake.isSuccess());
+        assertEquals(MessageTypes.LEGACY_VERSION, features.version());
+        /* the rejection of a datanode without the handshake, once our requests got it past the HELLO */
+        answer(0, -1);
+        assertTrue(channel.isOpen());
+        assertEquals(MessageTypes.LEGACY_VERSION, features.version());
+    }
+
+    public void testLateAnswer() throws Exception {
+        connect(20);
+        Thread.sleep(50);
+        channel.runPendingTasks();
+        assertTrue(handshake.isSuccess());
+        /* it has switched to the agreed format, we have not */
+        answer(new WireFeatures(true, true, true).agree(features.hello()), 0);
+        assertFalse(channel.isOpen());
+        assertEquals(MessageTypes.LEGACY_VERSION, features.version());
+    }
+}
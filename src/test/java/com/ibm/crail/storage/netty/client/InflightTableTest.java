@@ -0,0 +1,180 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slots, cookies and generations of InflightTable, alone and under concurrent reuse.
+ */
+public class InflightTableTest extends TestCase {
+
+    public void testInsertAndRemove() throws Exception {
+        InflightTable table = new InflightTable(4);
+        NettyIOResult op = new NettyIOResult();
+        long cookie = table.insert(op);
+        assertSame(op, table.get(cookie));
+        assertSame(op, table.remove(cookie));
+        assertNull(table.get(cookie));
+        assertNull(table.remove(cookie));
+    }
+
+    public void testStaleCookieAfterReuse() throws Exception {
+        InflightTable table = new InflightTable(1);
+        NettyIOResult first = new NettyIOResult();
+        long stale = table.insert(first);
+        assertSame(first, table.remove(stale));
+        NettyIOResult second = new NettyIOResult();
+        long cookie = table.insert(second);
+        /* the same slot, in its next generation */
+        assertEquals((int) stale, (int) cookie);
+        assertEquals((stale >>> 32) + 1, cookie >>> 32);
+        assertNull(table.get(stale));
+        assertNull(table.remove(stale));
+        assertSame(second, table.remove(cookie));
+    }
+
+    public void testGenerationWraps() throws Exception {
+        InflightTable table = new InflightTable(1);
+        long cookie = 0;
+        for (int i = 0; i <= InflightTable.GENERATION_LIMIT; i++) {
+            cookie = table.insert(new NettyIOResult());
+            assertTrue((cookie >>> 32) < InflightTable.GENERATION_LIMIT);
+            assertNotNull(table.remove(cookie));
+        }
+        assertEquals(0, cookie >>> 32);
+    }
+
+    public void testTryInsertWhenFull() throws Exception {
+        InflightTable table = new InflightTable(2);
+        long a = table.insert(new NettyIOResult());
+        table.insert(new NettyIOResult());
+        assertEquals(-1, table.tryInsert(new NettyIOResult()));
+        table.remove(a);
+        assertTrue(table.tryInsert(new NettyIOResult()) >= 0);
+    }
+
+    public void testInsertWaitsForFreeSlot() throws Exception {
+        final InflightTable table = new InflightTable(1);
+        final long cookie = table.insert(new NettyIOResult());
+        final CountDownLatch inserted = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    table.insert(new NettyIOResult());
+                    inserted.countDown();
+                } catch (InterruptedException e) {
+                    /* the test fails on the latch */
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(inserted.await(100, TimeUnit.MILLISECONDS));
+        table.remove(cookie);
+        assertTrue(inserted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    public void testFailAll() throws Exception {
+        InflightTable table = new InflightTable(8);
+        NettyIOResult[] ops = new NettyIOResult[5];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = new NettyIOResult();
+            table.insert(ops[i]);
+        }
+        assertEquals(ops.length, table.failAll(new IOException("gone")));
+        for (NettyIOResult op : ops) {
+            assertTrue(op.isDone());
+            try {
+                op.get();
+                fail("not failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(0, table.failAll(new IOException("gone")));
+    }
+
+    /* completions and timeouts race for the same cookies while slots are reused, each op comes out once */
+    public void testConcurrentReuse() throws Exception {
+        final InflightTable table = new InflightTable(4);
+        final int threads = 4;
+        final int rounds = 20000;
+        final AtomicInteger removed = new AtomicInteger(0);
+        final AtomicInteger wrong = new AtomicInteger(0);
+        final AtomicLong lastCookie = new AtomicLong(-1);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < rounds; i++) {
+                            NettyIOResult op = new NettyIOResult();
+                            long cookie = table.insert(op);
+                            lastCookie.set(cookie);
+                            /* somebody else's op, possibly already removed or its slot reused */
+                            long other = lastCookie.get();
+                            NettyIOResult stolen = table.remove(other);
+                            if(stolen != null) {
+                                removed.incrementAndGet();
+                                if(stolen == op && other != cookie) {
+                                    wrong.incrementAndGet();
+                                }
+                            }
+                            NettyIOResult mine = table.remove(cookie);
+                            if(mine != null) {
+                                removed.incrementAndGet();
+                                if(mine != op) {
+                                    wrong.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, wrong.get());
+        assertEquals(threads * rounds, removed.get());
+        /* every slot is free again */
+        for (int i = 0; i < table.capacity(); i++) {
+            assertTrue(table.tryInsert(new NettyIOResult()) >= 0);
+        }
+        assertEquals(-1, table.tryInsert(new NettyIOResult()));
+    }
+}
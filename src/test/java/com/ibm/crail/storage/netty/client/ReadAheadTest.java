@@ -0,0 +1,93 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How ReadAhead follows readers. Nothing is read ahead here, fill() is what would go to the
+ * connection.
+ */
+public class ReadAheadTest extends TestCase {
+    private static final long LIMIT = 1L << 30;
+
+    private static void read(ReadAhead readAhead, int stag, long address){
+        assertNull(readAhead.serve(ByteBuffer.allocate(4096), stag, address, LIMIT));
+    }
+
+    public void testFollowsSequentialReader() {
+        ReadAhead readAhead = new ReadAhead(null, 1 << 20, 8);
+        long address = 0;
+        for (int i = 0; i < 4; i++) {
+            read(readAhead, 1, address);
+            address += 4096;
+            assertTrue(readAhead.continues(1, address));
+        }
+        assertFalse(readAhead.continues(1, address + 4096));
+        assertFalse(readAhead.continues(2, address));
+        /* a jump starts a new stream from there, the old one ages out */
+        read(readAhead, 1, 1 << 20);
+        assertTrue(readAhead.continues(1, (1 << 20) + 4096));
+    }
+
+    public void testTwoReadersOfOneBlock() {
+        ReadAhead readAhead = new ReadAhead(null, 1 << 20, 8);
+        long a = 0;
+        long b = 1 << 20;
+        for (int i = 0; i < 4; i++) {
+            read(readAhead, 1, a);
+            read(readAhead, 1, b);
+            a += 4096;
+            b += 4096;
+            /* interleaved, neither of them loses its stream */
+            assertTrue(readAhead.continues(1, a));
+            assertTrue(readAhead.continues(1, b));
+        }
+        assertFalse(readAhead.continues(1, a + 4096));
+        assertFalse(readAhead.continues(2, a));
+    }
+
+    public void testInvalidateDropsAllStreamsOfTheBlock() {
+        ReadAhead readAhead = new ReadAhead(null, 1 << 20, 8);
+        read(readAhead, 1, 0);
+        read(readAhead, 1, 65536);
+        read(readAhead, 2, 0);
+        readAhead.invalidate(1);
+        assertFalse(readAhead.continues(1, 4096));
+        assertFalse(readAhead.continues(1, 65536 + 4096));
+        assertTrue(readAhead.continues(2, 4096));
+    }
+
+    public void testLeastRecentlyReadMakesRoom() {
+        ReadAhead readAhead = new ReadAhead(null, 1 << 20, 8);
+        for (int stag = 0; stag <= 16; stag++) {
+            read(readAhead, stag, 0);
+        }
+        assertFalse(readAhead.continues(0, 4096));
+        for (int stag = 1; stag <= 16; stag++) {
+            assertTrue(readAhead.continues(stag, 4096));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.client;
+
+import io.netty.util.HashedWheelTimer;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What WriteBehind stages, and the order in which it goes out. The connection is faked: it
+ * records what is issued, and has a free slot only once the test opens it.
+ */
+public class WriteBehindTest extends TestCase {
+    private HashedWheelTimer timer;
+
+    @Override
+    protected void setUp() throws Exception {
+        timer = new HashedWheelTimer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        timer.stop();
+    }
+
+    public void testStagesSequentialWrites() throws Exception {
+        WriteBehind behind = new WriteBehind(null, 4096, timer, 60000);
+        assertTrue(behind.accepts(512));
+        assertFalse(behind.accepts(4096));
+        assertFalse(behind.holds(1));
+        ByteBuffer src = ByteBuffer.allocate(512);
+        NettyIOResult first = behind.stage(src, 1, 0x1000);
+        /* the caller's buffer is untouched, and can be reused right away */
+        assertEquals(512, src.remaining());
+        assertFalse(first.isDone());
+        assertTrue(behind.holds(1));
+        assertFalse(behind.holds(2));
+        assertTrue(behind.continues(1, 0x1000 + 512));
+        assertFalse(behind.continues(1, 0x1000));
+        assertFalse(behind.continues(2, 0x1000 + 512));
+        NettyIOResult second = behind.stage(ByteBuffer.allocate(512), 1, 0x1000 + 512);
+        assertFalse(second.isDone());
+        assertTrue(behind.continues(1, 0x1000 + 1024));
+    }
+
+    public void testDeadlineFlushBeforeRead() throws Exception {
+        final Recording behind = new Recording(10);
+        NettyIOResult staged = behind.stage(ByteBuffer.allocate(512), 1, 0x1000);
+        /* the deadline passes while the connection is at its queue depth */
+        assertTrue(behind.awaiting.await(10, TimeUnit.SECONDS));
+        assertFalse(behind.holds(1));
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    behind.flush();
+                    behind.issued.add("read");
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        reader.start();
+        reader.join(100);
+        /* the read must not go out before the batch its flush found already detached */
+        assertTrue(reader.isAlive());
+        assertTrue(behind.issued.isEmpty());
+        behind.free.countDown();
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertEquals(Arrays.asList("write 1@4096", "read"), behind.issued);
+        assertSame(staged, behind.carried.get(0)[0]);
+    }
+
+    public void testBatchesKeepTheirOrder() throws Exception {
+        final Recording behind = new Recording(60000);
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    behind.stage(ByteBuffer.allocate(512), 1, 0x1000);
+                    /* another block, the first batch goes out and has to wait for a slot */
+                    behind.stage(ByteBuffer.allocate(512), 2, 0x2000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        writer.start();
+        assertTrue(behind.awaiting.await(10, TimeUnit.SECONDS));
+        /* a slot is free now, but the second batch must still not overtake the first */
+        behind.open = true;
+        Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    behind.flush();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        flusher.start();
+        flusher.join(100);
+        assertTrue(flusher.isAlive());
+        assertTrue(behind.issued.isEmpty());
+        behind.free.countDown();
+        flusher.join(10000);
+        writer.join(10000);
+        assertFalse(flusher.isAlive());
+        assertEquals(Arrays.asList("write 1@4096", "write 2@8192"), behind.issued);
+    }
+
+    /* issues into a list, without a connection behind it */
+    private class Recording extends WriteBehind {
+        final List<String> issued = Collections.synchronizedList(new ArrayList<String>());
+        final List<NettyIOResult[]> carried = new ArrayList<NettyIOResult[]>();
+        final CountDownLatch awaiting = new CountDownLatch(1);
+        final CountDownLatch free = new CountDownLatch(1);
+        volatile boolean open = false;
+
+        Recording(long deadlineMs){
+            super(null, 4096, timer, deadlineMs);
+        }
+
+        long reserve(Batch batch){
+            return open ? 0 : -1;
+        }
+
+        long await(Batch batch) throws InterruptedException {
+            awaiting.countDown();
+            free.await();
+            return 0;
+        }
+
+        void issue(Batch batch, long id){
+            issued.add("write " + batch.stag + "@" + batch.address);
+            carried.add(batch.members);
+            batch.payload.release();
+        }
+
+        boolean inEventLoop(){
+            return false;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Heap bytes allocated per small IO by the wire messages: a READ_REQ taken from the pool,
+ * encoded and recycled on the client, and decoded into a pooled RdmaMsgRx and recycled on the
+ * other side. Needs a JVM that counts allocations per thread (HotSpot).
+ *
+ * Usage: AllocationBenchmark [iterations] [budget in bytes per op]
+ * Exits with 1 if a budget is given and exceeded.
+ */
+public class AllocationBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        long budget = args.length > 1 ? Long.parseLong(args[1]) : -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long me = Thread.currentThread().getId();
+        /* the first round fills the pools and warms up the JIT */
+        run(iterations);
+        long before = threads.getThreadAllocatedBytes(me);
+        long start = System.nanoTime();
+        run(iterations);
+        long nanos = System.nanoTime() - start;
+        double perOp = (double) (threads.getThreadAllocatedBytes(me) - before) / iterations;
+        System.out.println(String.format("%d ops, %.1f bytes allocated per op, %.1f ns per op", iterations, perOp,
+                (double) nanos / iterations));
+        if (budget >= 0 && perOp > budget) {
+            System.out.println("Over the budget of " + budget + " bytes per op");
+            System.exit(1);
+        }
+    }
+
+    private static void run(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            RdmaMsgTx tx = RdmaMsgTx.newInstance();
+            tx.initHeader(0x7f3a12345000L + i * 4096L, 4096, 17, MessageTypes.READ_REQ, 0, i & 1023);
+            ByteBuf header = tx.getHeaderPayload();
+            RdmaMsgRx rx = RdmaMsgRx.newInstance();
+            rx.decodeHeader(header);
+            if (rx.cookie() != (i & 1023)) {
+                throw new IllegalStateException("Decoded " + rx);
+            }
+            rx.recycle();
+            tx.recycle();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cost of the checksum on the data path. The same payload goes through RdmaEncoderTx and then
+ * through RdmaDecoderRx into a region, once on a connection that agreed on CRC32C and once on
+ * one that did not. The wire bytes reach the decoder in socket-sized chunks, so the payload is
+ * streamed into the region as it would be on a reading client. With the checksum on, a datanode
+ * streams a write into a scratch buffer instead and copies it into the region once verified,
+ * which is measured as a path of its own.
+ *
+ * Usage: ChecksumBenchmark [payload size in bytes] [chunk size in bytes] [megabytes per run]
+ */
+public class ChecksumBenchmark {
+
+    /* streams every payload into the same region, or into a scratch buffer first like a datanode */
+    private static final class RegionDecoder extends RdmaDecoderRx {
+        private final ByteBuf region;
+        private final boolean verifyFirst;
+
+        RegionDecoder(WireFeatures features, ByteBuf region, boolean verifyFirst) {
+            super(features);
+            this.region = region;
+            this.verifyFirst = verifyFirst;
+        }
+
+        @Override
+        protected ByteBuf payloadSink(RdmaMsgRx msg) {
+            if (verifyFirst && msg.hasChecksum()) {
+                ByteBuf scratch = PooledByteBufAllocator.DEFAULT.directBuffer(msg.opLength(), msg.opLength());
+                msg.fillRxPayload(scratch);
+                return scratch;
+            }
+            return region.duplicate().clear();
+        }
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+        int chunk = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        long megabytes = args.length > 2 ? Long.parseLong(args[2]) : 2048;
+        int iterations = (int) Math.max(1, megabytes * 1024 * 1024 / size);
+        ByteBuffer payload = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            payload.put(i, (byte) (i * 31));
+        }
+        System.out.println("Payload " + size + " bytes in chunks of " + chunk + ", " + iterations +
+                " iterations, crc " + Crc32c.implementation());
+        /* the first rounds warm up the JIT, only the last one is reported */
+        long[] off = null;
+        long[] on = null;
+        long[] verified = null;
+        for (int round = 0; round < 3; round++) {
+            off = run(payload, chunk, iterations, false, false);
+            on = run(payload, chunk, iterations, true, false);
+            verified = run(payload, chunk, iterations, true, true);
+        }
+        report("send", size, iterations, off[0], on[0]);
+        report("read", size, iterations, off[1], on[1]);
+        report("write", size, iterations, off[1], verified[1]);
+    }
+
+    /* nanoseconds spent encoding and decoding */
+    private static long[] run(ByteBuffer payload, int chunk, int iterations, boolean checksum, boolean verifyFirst) {
+        WireFeatures features = new WireFeatures(false, checksum, false);
+        features.agree(new WireFeatures(false, checksum, false).agree(features.hello()));
+        ByteBuf region = Unpooled.directBuffer(payload.capacity());
+        EmbeddedChannel sender = new EmbeddedChannel(new RdmaEncoderTx(features, Integer.MAX_VALUE));
+        EmbeddedChannel receiver = new EmbeddedChannel(new RegionDecoder(features, region, verifyFirst));
+        long[] nanos = new long[2];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            RdmaMsgTx tx = RdmaMsgTx.newInstance();
+            tx.initHeader(0, payload.capacity(), 1, MessageTypes.WRITE_REQ, 0, i & 1023);
+            tx.referenceTxPayload(payload.duplicate());
+            sender.writeOutbound(tx);
+            tx.recycle();
+            ByteBuf wire = (ByteBuf) sender.readOutbound();
+            long encoded = System.nanoTime();
+            while (wire.isReadable()) {
+                receiver.writeInbound(wire.readSlice(Math.min(chunk, wire.readableBytes())).retain());
+            }
+            wire.release();
+            RdmaMsgRx rx = (RdmaMsgRx) receiver.readInbound();
+            if (rx == null || rx.hasChecksum() != checksum || rx.isChecksumFailed()) {
+                throw new IllegalStateException("Decoded " + rx);
+            }
+            if (rx.hasRxPayload()) {
+                /* it checked out, now it may go to the region */
+                rx.copyAndReleaseRxPayload(region.duplicate(), 0);
+            }
+            rx.recycle();
+            nanos[0] += encoded - start;
+            nanos[1] += System.nanoTime() - encoded;
+        }
+        sender.finish();
+        receiver.finish();
+        region.release();
+        return nanos;
+    }
+
+    private static void report(String side, int size, int iterations, long off, long on) {
+        double bytes = (double) size * iterations / (1024 * 1024);
+        System.out.println(String.format("%-8s crc off %9.1f MB/s, crc on %9.1f MB/s, %+.1f%% time", side,
+                bytes / (off / 1e9), bytes / (on / 1e9), 100.0 * (on - off) / off));
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import com.ibm.crail.storage.netty.client.InflightTable;
+import com.ibm.crail.storage.netty.client.NettyIOResult;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Small IO round trips over loopback TCP with the fixed and the compact header. A client keeps
+ * a number of 512 byte or 4 KB reads or writes outstanding against a server that answers them
+ * from one region, both built from the same codec and handlers setup as the datanode and the
+ * client endpoint. Cookies come from a real InflightTable, so they carry the generations of
+ * reused slots. Both ends agree on the header format up front, there is no HELLO.
+ *
+ * Usage: HeaderBenchmark [round trips per run] [queue depth]
+ */
+public class HeaderBenchmark {
+    private static final long ADDRESS = 0x7f3a12345000L;
+    private static final int REGION_SIZE = 4096;
+
+    /* streams the payload of the given type into a buffer, as the datanode and the client do */
+    private static final class SinkDecoder extends RdmaDecoderRx {
+        private final int type;
+        private final ByteBuf target;
+
+        SinkDecoder(WireFeatures features, int type, ByteBuf target) {
+            super(features);
+            this.type = type;
+            this.target = target;
+        }
+
+        @Override
+        protected ByteBuf payloadSink(RdmaMsgRx msg) {
+            return msg.type() == type ? target.duplicate().clear() : null;
+        }
+    }
+
+    /* answers reads from the region and acknowledges writes into it */
+    private static final class Server extends SimpleChannelInboundHandler<RdmaMsgRx> {
+        private final ByteBuf region;
+
+        Server(ByteBuf region) {
+            this.region = region;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, RdmaMsgRx rxMsg) {
+            RdmaMsgTx txMsg;
+            if (rxMsg.type() == MessageTypes.READ_REQ) {
+                txMsg = rxMsg.makeTxMsg(0, MessageTypes.READ_RESP);
+                txMsg.referenceTxPayload(region, 0, rxMsg.opLength());
+            } else {
+                txMsg = rxMsg.makeTxMsg(0, MessageTypes.WRITE_RESP);
+            }
+            rxMsg.recycle();
+            ctx.channel().writeAndFlush(txMsg).addListener(txMsg);
+        }
+    }
+
+    /* keeps depth requests outstanding until total have completed */
+    private static final class Client extends SimpleChannelInboundHandler<RdmaMsgRx> {
+        private final boolean read;
+        private final int size;
+        private final int depth;
+        private final long total;
+        private final ByteBuf data;
+        private final InflightTable table;
+        private final CountDownLatch done;
+        private long sent;
+        private long completed;
+        private long start;
+        private long nanos;
+
+        Client(boolean read, int size, int depth, long total, ByteBuf data) {
+            this.read = read;
+            this.size = size;
+            this.depth = depth;
+            this.total = total;
+            this.data = data;
+            this.table = new InflightTable(depth);
+            this.done = new CountDownLatch(1);
+        }
+
+        private void issue(Channel channel) throws InterruptedException {
+            /* never blocks, there are never more than depth requests out */
+            long cookie = table.insert(new NettyIOResult());
+            RdmaMsgTx txMsg = RdmaMsgTx.newInstance();
+            long address = ADDRESS + (sent % 1024) * size;
+            if (read) {
+                txMsg.initHeader(address, size, 1, MessageTypes.READ_REQ, 0, cookie);
+            } else {
+                txMsg.initHeader(address, size, 1, MessageTypes.WRITE_REQ, 0, cookie);
+                txMsg.referenceTxPayload(data, 0, size);
+            }
+            sent++;
+            channel.writeAndFlush(txMsg).addListener(txMsg);
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            start = System.nanoTime();
+            for (int i = 0; i < depth && sent < total; i++) {
+                issue(ctx.channel());
+            }
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, RdmaMsgRx rxMsg) throws Exception {
+            if (rxMsg.status() != 0 || table.remove(rxMsg.cookie()) == null) {
+                throw new IllegalStateException("Unexpected " + rxMsg);
+            }
+            rxMsg.recycle();
+            completed++;
+            if (sent < total) {
+                issue(ctx.channel());
+            } else if (completed == total) {
+                nanos = System.nanoTime() - start;
+                done.countDown();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long total = args.length > 0 ? Long.parseLong(args[0]) : 200000;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        EventLoopGroup serverGroup = new NioEventLoopGroup(1);
+        EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+        final ByteBuf region = Unpooled.directBuffer(REGION_SIZE, REGION_SIZE).writeZero(REGION_SIZE);
+        try {
+            System.out.println(total + " round trips per run, queue depth " + depth);
+            int[] sizes = { 512, 4096 };
+            boolean[] reads = { true, false };
+            /* the first round warms up the JIT, only the second one is reported */
+            for (int round = 0; round < 2; round++) {
+                for (boolean read : reads) {
+                    for (int size : sizes) {
+                        double fixed = run(serverGroup, clientGroup, region, false, read, size, depth, total);
+                        double compact = run(serverGroup, clientGroup, region, true, read, size, depth, total);
+                        if (round == 1) {
+                            System.out.println(String.format("%-5s %4d B  fixed %9.0f IOPS (%2d+%2d header bytes)" +
+                                            "  compact %9.0f IOPS (%2d+%2d header bytes)  %+.1f%%",
+                                    read ? "read" : "write", size, fixed, headerBytes(false, read, size, true),
+                                    headerBytes(false, read, size, false), compact, headerBytes(true, read, size, true),
+                                    headerBytes(true, read, size, false), 100.0 * (compact - fixed) / fixed));
+                        }
+                    }
+                }
+            }
+        } finally {
+            region.release();
+            serverGroup.shutdownGracefully();
+            clientGroup.shutdownGracefully();
+        }
+    }
+
+    private static WireFeatures agreed(boolean compact) {
+        WireFeatures features = new WireFeatures(false, false, compact);
+        features.agree(new WireFeatures(false, false, compact).agree(features.hello()));
+        return features;
+    }
+
+    /* round trips per second */
+    private static double run(EventLoopGroup serverGroup, EventLoopGroup clientGroup, final ByteBuf region,
+                              final boolean compact, boolean read, int size, int depth, long total) throws Exception {
+        ServerBootstrap server = new ServerBootstrap();
+        server.group(serverGroup).channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        WireFeatures features = agreed(compact);
+                        ch.pipeline().addLast(new RdmaEncoderTx(features, Integer.MAX_VALUE),
+                                new SinkDecoder(features, MessageTypes.WRITE_REQ, region), new Server(region));
+                    }
+                });
+        Channel listener = server.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        final ByteBuf data = Unpooled.directBuffer(size, size).writeZero(size);
+        final Client client = new Client(read, size, depth, total, data);
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(clientGroup).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        WireFeatures features = agreed(compact);
+                        ch.pipeline().addLast(new RdmaEncoderTx(features, Integer.MAX_VALUE),
+                                new SinkDecoder(features, MessageTypes.READ_RESP, data), client);
+                    }
+                });
+        Channel channel = bootstrap.connect(listener.localAddress()).sync().channel();
+        client.done.await();
+        channel.close().sync();
+        listener.close().sync();
+        data.release();
+        return total / (client.nanos / 1e9);
+    }
+
+    /* the header bytes of a request or of its response, as the encoder frames them */
+    private static int headerBytes(boolean compact, boolean read, int size, boolean request) {
+        WireFeatures features = agreed(compact);
+        RdmaMsgTx txMsg = RdmaMsgTx.newInstance();
+        int payload = 0;
+        /* a slot that has been reused a thousand times */
+        long cookie = (1000L << 32) | 7;
+        if (request) {
+            txMsg.initHeader(ADDRESS, size, 1, read ? MessageTypes.READ_REQ : MessageTypes.WRITE_REQ, 0, cookie);
+            payload = read ? 0 : size;
+        } else {
+            txMsg.initHeader(ADDRESS, size, 1, read ? MessageTypes.READ_RESP : MessageTypes.WRITE_RESP, 0, cookie);
+            payload = read ? size : 0;
+        }
+        ByteBuf data = Unpooled.directBuffer(payload).writeZero(payload);
+        if (payload > 0) {
+            txMsg.referenceTxPayload(data, 0, payload);
+        }
+        EmbeddedChannel channel = new EmbeddedChannel(new RdmaEncoderTx(features, Integer.MAX_VALUE));
+        channel.writeOutbound(txMsg);
+        txMsg.recycle();
+        ByteBuf wire = (ByteBuf) channel.readOutbound();
+        int bytes = wire.readableBytes() - payload;
+        wire.release();
+        data.release();
+        channel.finish();
+        return bytes;
+    }
+}
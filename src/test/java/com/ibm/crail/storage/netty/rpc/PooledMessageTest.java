@@ -0,0 +1,130 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pooled RdmaMsgTx/RdmaMsgRx: a message survives the trip through the wire format, and
+ * recycle() drops exactly the references the message took.
+ */
+public class PooledMessageTest extends TestCase {
+
+    private static byte[] pattern(int length){
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        return data;
+    }
+
+    public void testRoundTrip() {
+        byte[] data = pattern(4096);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x7f3a12345000L, data.length, 17, MessageTypes.WRITE_REQ, 0, 42);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        EmbeddedChannel out = new EmbeddedChannel(new RdmaEncoderTx());
+        assertTrue(out.writeOutbound(tx));
+        tx.recycle();
+        ByteBuf wire = (ByteBuf) out.readOutbound();
+        assertNull(out.readOutbound());
+        out.finish();
+        assertEquals(RdmaMsgHeader.CSIZE + data.length, wire.readableBytes());
+
+        /* one byte at a time, as it may come off the socket */
+        EmbeddedChannel channel = new EmbeddedChannel(new RdmaDecoderRx());
+        while (wire.isReadable()) {
+            channel.writeInbound(wire.readBytes(1));
+        }
+        wire.release();
+        RdmaMsgRx rx = (RdmaMsgRx) channel.readInbound();
+        assertNotNull(rx);
+        assertNull(channel.readInbound());
+        assertEquals(0x7f3a12345000L, rx.address());
+        assertEquals(data.length, rx.opLength());
+        assertEquals(17, rx.stag());
+        assertEquals(MessageTypes.WRITE_REQ, rx.type());
+        assertEquals(42, rx.cookie());
+        assertTrue(rx.hasRxPayload());
+        ByteBuf received = Unpooled.buffer(data.length);
+        rx.copyAndReleaseRxPayload(received, 0);
+        received.writerIndex(data.length);
+        assertFalse(rx.hasRxPayload());
+        byte[] copy = new byte[data.length];
+        received.readBytes(copy);
+        assertTrue(Arrays.equals(data, copy));
+        rx.recycle();
+        channel.finish();
+    }
+
+    public void testTxRecycleReleasesItsReferences() {
+        ByteBuf payload = Unpooled.directBuffer(512).writeZero(512);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0, 256, 1, MessageTypes.WRITE_REQ, 0, 1);
+        tx.referenceTxPayload(payload, 128, 256);
+        ByteBuf header = tx.getHeaderPayload();
+        assertEquals(1, header.refCnt());
+        assertEquals(2, payload.refCnt());
+        tx.recycle();
+        assertEquals(0, header.refCnt());
+        assertEquals(1, payload.refCnt());
+        payload.release();
+    }
+
+    public void testRxRecycleReleasesThePayload() {
+        ByteBuf cumulation = Unpooled.buffer(64).writeZero(64);
+        RdmaMsgRx rx = RdmaMsgRx.newInstance();
+        rx.initHeader(0, 64, 1, MessageTypes.WRITE_REQ, 0, 1);
+        rx.referenceRxPayloadAndRetain(cumulation);
+        assertEquals(2, cumulation.refCnt());
+        rx.recycle();
+        assertEquals(1, cumulation.refCnt());
+        cumulation.release();
+    }
+
+    public void testRecycledMessagesComeBackClean() {
+        RdmaMsgRx rx = RdmaMsgRx.newInstance();
+        rx.initHeader(4096, 64, 1, MessageTypes.WRITE_REQ, 0, 1);
+        rx.referenceRxPayloadAndRetain(Unpooled.buffer(64).writeZero(64));
+        rx.recycle();
+        rx = RdmaMsgRx.newInstance();
+        assertEquals(-1, rx.address());
+        assertEquals(-1, rx.cookie());
+        assertFalse(rx.hasRxPayload());
+        rx.recycle();
+
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(4096, 0, 1, MessageTypes.READ_REQ, 0, 1);
+        tx.recycle();
+        tx = RdmaMsgTx.newInstance();
+        assertEquals(-1, tx.address());
+        assertEquals(RdmaMsgHeader.CSIZE, tx.getHeaderPayload().readableBytes());
+        tx.recycle();
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Crail-Netty: An implementation of Crail DataNode and RPC interfaces
+ *              to run on netty/TCP transport.
+ *
+ * Author: Animesh Trivedi <atr@zurich.ibm.com>
+ *
+ * Copyright (C) 2016, IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.ibm.crail.storage.netty.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Messages through RdmaEncoderTx and back through RdmaDecoderRx, with segment lists,
+ * compressed and checksummed payloads, the fixed and the compact header, the handshake, and
+ * payloads handed on in chunks.
+ */
+public class WireCodecTest extends TestCase {
+
+    private static WireFeatures agreed(boolean compression, boolean checksum, boolean compact){
+        WireFeatures client = new WireFeatures(compression, checksum, compact);
+        WireFeatures server = new WireFeatures(compression, checksum, compact);
+        client.agree(server.agree(client.hello()));
+        return client;
+    }
+
+    private static byte[] pattern(int length){
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        return data;
+    }
+
+    /* everything the encoder wrote for the message, as one buffer */
+    private static ByteBuf encode(RdmaMsgTx tx){
+        return encode(null, tx);
+    }
+
+    private static ByteBuf encode(WireFeatures features, RdmaMsgTx tx){
+        EmbeddedChannel channel = new EmbeddedChannel(features == null ? new RdmaEncoderTx() : new RdmaEncoderTx(features, 1024));
+        assertTrue(channel.writeOutbound(tx));
+        tx.recycle();
+        ByteBuf wire = Unpooled.buffer();
+        Object out;
+        while ((out = channel.readOutbound()) != null) {
+            wire.writeBytes((ByteBuf) out);
+            ((ByteBuf) out).release();
+        }
+        channel.finish();
+        return wire;
+    }
+
+    private static RdmaMsgRx decode(ByteBuf wire, boolean byteByByte){
+        return decode(null, wire, byteByByte);
+    }
+
+    /* hands the bytes to the decoder one at a time when asked to, as they may come off the socket */
+    private static RdmaMsgRx decode(WireFeatures features, ByteBuf wire, boolean byteByByte){
+        EmbeddedChannel channel = new EmbeddedChannel(features == null ? new RdmaDecoderRx() : new RdmaDecoderRx(features));
+        if (byteByByte) {
+            while (wire.isReadable()) {
+                channel.writeInbound(wire.readBytes(1));
+            }
+            wire.release();
+        } else {
+            channel.writeInbound(wire);
+        }
+        RdmaMsgRx rx = (RdmaMsgRx) channel.readInbound();
+        assertNotNull("nothing decoded", rx);
+        assertNull("more than one message decoded", channel.readInbound());
+        channel.finish();
+        return rx;
+    }
+
+    private static void assertHeader(RdmaMsgRx rx, long address, int length, int stag, int type, int status, long cookie){
+        assertEquals("type", type, rx.type());
+        assertEquals("length", length, rx.opLength());
+        assertEquals("status", status, rx.status());
+        assertEquals("cookie", cookie, rx.cookie());
+        if (MessageTypes.hasTarget(type)) {
+            assertEquals("stag", stag, rx.stag());
+            assertEquals("address", address, rx.address());
+        }
+    }
+
+    private static byte[] payloadOf(RdmaMsgRx rx){
+        ByteBuf payload = Unpooled.buffer(rx.opLength());
+        rx.copyAndReleaseRxPayload(payload, 0);
+        byte[] data = new byte[rx.opLength()];
+        payload.getBytes(0, data);
+        return data;
+    }
+
+    public void testSegmentList() {
+        int[] stags = { 1, 2, 1 };
+        long[] addresses = { 0x1000, 0x2000, 0x9000 };
+        int[] lengths = { 100, 200, 300 };
+        byte[] data = pattern(600);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0, data.length, stags.length, MessageTypes.WRITEV_REQ, 0, 11);
+        tx.setSegments(stags, addresses, lengths);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        RdmaMsgRx rx = decode(encode(tx), true);
+        assertEquals(MessageTypes.WRITEV_REQ, rx.type());
+        assertEquals(stags.length, rx.segments());
+        for (int i = 0; i < stags.length; i++) {
+            assertEquals(stags[i], rx.segmentStag(i));
+            assertEquals(addresses[i], rx.segmentAddress(i));
+            assertEquals(lengths[i], rx.segmentLength(i));
+        }
+        assertTrue(Arrays.equals(data, payloadOf(rx)));
+        rx.recycle();
+    }
+
+    /* the segments of a READV tell where to read from, nothing follows them */
+    public void testVectoredReadRequest() {
+        int[] stags = { 3, 4 };
+        long[] addresses = { 0x4000, 0x0 };
+        int[] lengths = { 4096, 512 };
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0, 4096 + 512, stags.length, MessageTypes.READV_REQ, 0, 12);
+        tx.setSegments(stags, addresses, lengths);
+        RdmaMsgRx rx = decode(encode(tx), false);
+        assertEquals(MessageTypes.READV_REQ, rx.type());
+        assertEquals(4096 + 512, rx.opLength());
+        assertEquals(stags.length, rx.segments());
+        for (int i = 0; i < stags.length; i++) {
+            assertEquals(stags[i], rx.segmentStag(i));
+            assertEquals(addresses[i], rx.segmentAddress(i));
+            assertEquals(lengths[i], rx.segmentLength(i));
+        }
+        assertFalse(rx.hasRxPayload());
+        rx.recycle();
+    }
+
+
+    public void testCompression() {
+        byte[] data = pattern(65536);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        ByteBuf wire = encode(agreed(true, false, false), tx);
+        assertTrue("not compressed, " + wire.readableBytes() + " bytes", wire.readableBytes() < data.length / 4);
+        RdmaMsgRx rx = decode(wire, true);
+        assertTrue(rx.isCompressed());
+        assertEquals(data.length, rx.opLength());
+        assertTrue(Arrays.equals(data, payloadOf(rx)));
+        rx.recycle();
+    }
+
+    /* not agreed, below the threshold or not getting any smaller: the payload goes out as it is */
+    public void testUncompressed() {
+        byte[] random = new byte[8192];
+        new Random(7).nextBytes(random);
+        byte[][] payloads = { pattern(65536), pattern(512), random };
+        WireFeatures[] features = { new WireFeatures(true, false, false), agreed(true, false, false), agreed(true, false, false) };
+        for (int i = 0; i < payloads.length; i++) {
+            RdmaMsgTx tx = RdmaMsgTx.newInstance();
+            tx.initHeader(0x1000, payloads[i].length, 3, MessageTypes.READ_RESP, 0, 9);
+            tx.referenceTxPayload(ByteBuffer.wrap(payloads[i]));
+            ByteBuf wire = encode(features[i], tx);
+            assertEquals(RdmaMsgHeader.CSIZE + payloads[i].length, wire.readableBytes());
+            RdmaMsgRx rx = decode(wire, false);
+            assertFalse(rx.isCompressed());
+            assertTrue(Arrays.equals(payloads[i], payloadOf(rx)));
+            rx.recycle();
+        }
+    }
+
+    public void testChecksum() {
+        WireFeatures features = agreed(false, true, false);
+        byte[] data = pattern(8192);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        ByteBuf wire = encode(features, tx);
+        assertEquals(RdmaMsgHeader.CSIZE + RdmaMsgHeader.CHECKSUM_EXT_SIZE + data.length, wire.readableBytes());
+        RdmaMsgRx rx = decode(wire.copy(), false);
+        assertTrue(rx.hasChecksum());
+        assertFalse(rx.isChecksumFailed());
+        assertTrue(Arrays.equals(data, payloadOf(rx)));
+        rx.recycle();
+        /* one bit flipped in the last byte of the payload */
+        int last = wire.writerIndex() - 1;
+        wire.setByte(last, wire.getByte(last) ^ 1);
+        rx = decode(wire, true);
+        assertTrue(rx.isChecksumFailed());
+        rx.recycle();
+    }
+
+    public void testChecksumWhileCopying() {
+        byte[] data = pattern(100000);
+        ByteBuf src = Unpooled.wrappedBuffer(data);
+        ByteBuf dst = Unpooled.directBuffer(data.length);
+        Crc32c crc = Crc32c.newInstance();
+        crc.reset();
+        /* odd lengths, so that the blocks and longs do not line up */
+        crc.updateAndCopy(src, 12345, dst);
+        crc.updateAndCopy(src, data.length - 12345, dst);
+        assertEquals(Crc32c.newInstance().compute(Unpooled.wrappedBuffer(data)), crc.getValue());
+        assertFalse(src.isReadable());
+        byte[] copied = new byte[data.length];
+        dst.getBytes(0, copied);
+        assertTrue(Arrays.equals(data, copied));
+        dst.release();
+    }
+
+    /* a checksummed payload streamed into a sink, as the datanode does into its scratch buffer */
+    public void testStreamedChecksum() {
+        WireFeatures features = agreed(false, true, false);
+        byte[] data = pattern(8192);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        ByteBuf wire = encode(features, tx);
+        for (boolean flip : new boolean[]{false, true}) {
+            ByteBuf copy = wire.copy();
+            if (flip) {
+                copy.setByte(copy.writerIndex() - 1, copy.getByte(copy.writerIndex() - 1) ^ 1);
+            }
+            EmbeddedChannel channel = new EmbeddedChannel(new RdmaDecoderRx(features) {
+                protected ByteBuf payloadSink(RdmaMsgRx msg) {
+                    ByteBuf scratch = Unpooled.directBuffer(msg.opLength());
+                    msg.fillRxPayload(scratch);
+                    return scratch;
+                }
+            });
+            while (copy.isReadable()) {
+                channel.writeInbound(copy.readBytes(Math.min(1000, copy.readableBytes())));
+            }
+            copy.release();
+            RdmaMsgRx rx = (RdmaMsgRx) channel.readInbound();
+            assertNotNull(rx);
+            assertEquals(flip, rx.isChecksumFailed());
+            assertTrue(Arrays.equals(data, payloadOf(rx)) != flip);
+            rx.recycle();
+            channel.finish();
+        }
+        wire.release();
+    }
+
+    public void testCompressionWithChecksum() {
+        WireFeatures features = agreed(true, true, false);
+        byte[] data = pattern(65536);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        ByteBuf wire = encode(features, tx);
+        assertTrue("not compressed, " + wire.readableBytes() + " bytes", wire.readableBytes() < data.length / 4);
+        RdmaMsgRx rx = decode(wire, false);
+        assertTrue(rx.isCompressed());
+        assertFalse(rx.isChecksumFailed());
+        assertTrue(Arrays.equals(data, payloadOf(rx)));
+        rx.recycle();
+    }
+
+    public void testPreparedOffTheEventLoop() throws Exception {
+        WireFeatures features = agreed(true, true, false);
+        RdmaEncoderTx encoder = new RdmaEncoderTx(features, 1024);
+        byte[] data = pattern(65536);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        encoder.prepare(tx);
+        assertTrue(tx.isPrepared());
+        EmbeddedChannel channel = new EmbeddedChannel(encoder);
+        channel.writeOutbound(tx);
+        ByteBuf wire = Unpooled.buffer();
+        Object out;
+        while ((out = channel.readOutbound()) != null) {
+            wire.writeBytes((ByteBuf) out);
+            ((ByteBuf) out).release();
+        }
+        channel.finish();
+        RdmaMsgRx rx = decode(features, wire, false);
+        assertFalse(rx.isChecksumFailed());
+        assertTrue(Arrays.equals(data, payloadOf(rx)));
+        rx.recycle();
+    }
+
+    public void testHello() {
+        WireFeatures client = new WireFeatures(true, true, true);
+        WireFeatures server = new WireFeatures(false, true, false);
+        RdmaMsgTx hello = RdmaMsgTx.newInstance();
+        hello.initHeader(client.hello(), 0, 0, MessageTypes.HELLO, 0, MessageTypes.HELLO_COOKIE);
+        /* before the handshake both sides speak the fixed header */
+        RdmaMsgRx rx = decode(server, encode(client, hello), false);
+        assertEquals(MessageTypes.HELLO, rx.type());
+        assertEquals(MessageTypes.HELLO_COOKIE, rx.cookie());
+        long answer = server.agree(rx.address());
+        rx.recycle();
+        client.agree(answer);
+        assertEquals(MessageTypes.PROTOCOL_VERSION, client.version());
+        assertTrue(client.has(MessageTypes.FEATURE_CRC32C));
+        assertTrue(client.has(MessageTypes.FEATURE_VECTORED));
+        assertFalse(client.has(MessageTypes.FEATURE_SNAPPY));
+        assertFalse(client.has(MessageTypes.FEATURE_COMPACT));
+        /* the handshake messages stay fixed even once compact has been agreed on */
+        WireFeatures compact = agreed(false, false, true);
+        assertFalse(compact.isCompact(MessageTypes.HELLO));
+        assertFalse(compact.isCompact(MessageTypes.HELLO_RESP));
+        assertTrue(compact.isCompact(MessageTypes.READ_REQ));
+    }
+
+    public void testLegacy() {
+        WireFeatures features = agreed(true, true, true);
+        features.legacy();
+        assertEquals(MessageTypes.LEGACY_VERSION, features.version());
+        assertFalse(features.has(MessageTypes.FEATURE_SNAPPY | MessageTypes.FEATURE_CRC32C |
+                MessageTypes.FEATURE_COMPACT | MessageTypes.FEATURE_VECTORED | MessageTypes.FEATURE_STREAMS));
+    }
+
+    public void testFixedHeader() {
+        byte[] data = pattern(4096);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x7f3a12345000L, data.length, 17, MessageTypes.WRITE_REQ, 0, (3L << 32) | 5);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        ByteBuf wire = encode(null, tx);
+        assertEquals(RdmaMsgHeader.CSIZE + data.length, wire.readableBytes());
+        RdmaMsgRx rx = decode(null, wire, false);
+        assertHeader(rx, 0x7f3a12345000L, data.length, 17, MessageTypes.WRITE_REQ, 0, (3L << 32) | 5);
+        assertTrue(Arrays.equals(data, payloadOf(rx)));
+        rx.recycle();
+    }
+
+    public void testCompactHeader() {
+        WireFeatures features = agreed(false, false, true);
+        long[] cookies = { 0, 127, (1L << 32) | 1, (16383L << 32) | 1023 };
+        for (long cookie : cookies) {
+            RdmaMsgTx tx = RdmaMsgTx.newInstance();
+            tx.initHeader(0x7f3a12345000L, 512, 17, MessageTypes.WRITE_REQ, 0, cookie);
+            tx.referenceTxPayload(ByteBuffer.wrap(pattern(512)));
+            ByteBuf wire = encode(features, tx);
+            assertTrue("header of " + (wire.readableBytes() - 512) + " bytes", wire.readableBytes() - 512 <= 15);
+            RdmaMsgRx rx = decode(features, wire, true);
+            assertHeader(rx, 0x7f3a12345000L, 512, 17, MessageTypes.WRITE_REQ, 0, cookie);
+            assertTrue(Arrays.equals(pattern(512), payloadOf(rx)));
+            rx.recycle();
+        }
+    }
+
+    public void testCompactResponseSizes() {
+        WireFeatures features = agreed(false, false, true);
+        /* a fresh slot, and one that has been reused many times */
+        long[] cookies = { 5, (16383L << 32) | 1023 };
+        int[] sizes = { 5, 7 };
+        for (int i = 0; i < cookies.length; i++) {
+            RdmaMsgTx tx = RdmaMsgTx.newInstance();
+            tx.initHeader(0, 4096, 0, MessageTypes.READ_RESP, 0, cookies[i]);
+            tx.referenceTxPayload(ByteBuffer.wrap(pattern(4096)));
+            ByteBuf wire = encode(features, tx);
+            assertEquals(sizes[i], wire.readableBytes() - 4096);
+            decode(features, wire, false).recycle();
+        }
+    }
+
+    public void testCompactErrorStatus() {
+        WireFeatures features = agreed(false, false, true);
+        int[] statuses = { -1, MessageTypes.STATUS_CHECKSUM };
+        for (int status : statuses) {
+            RdmaMsgTx tx = RdmaMsgTx.newInstance();
+            tx.initHeader(0, 0, 0, MessageTypes.WRITE_RESP, status, 42);
+            RdmaMsgRx rx = decode(features, encode(features, tx), true);
+            assertHeader(rx, 0, 0, 0, MessageTypes.WRITE_RESP, status, 42);
+            rx.recycle();
+        }
+    }
+
+    public void testPayloadChunks() {
+        final ByteBuf placed = Unpooled.buffer(8192);
+        final List<Integer> positions = new ArrayList<Integer>();
+        EmbeddedChannel channel = new EmbeddedChannel(new RdmaDecoderRx() {
+            protected boolean streamsPayload(RdmaMsgRx msg) {
+                return true;
+            }
+
+            protected void payloadChunk(RdmaMsgRx msg, ByteBuf chunk, int position) {
+                /* nothing of the payload is on the message while it is being handed on */
+                assertFalse(msg.hasRxPayload());
+                positions.add(position);
+                placed.setBytes(position, chunk);
+                chunk.release();
+            }
+        });
+        byte[] data = pattern(8192);
+        RdmaMsgTx tx = RdmaMsgTx.newInstance();
+        tx.initHeader(0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        tx.referenceTxPayload(ByteBuffer.wrap(data));
+        ByteBuf wire = encode(tx);
+        /* the header and a bit, then the rest in two pieces */
+        channel.writeInbound(wire.readBytes(RdmaMsgHeader.CSIZE + 100));
+        assertNull(channel.readInbound());
+        channel.writeInbound(wire.readBytes(4000));
+        assertNull(channel.readInbound());
+        channel.writeInbound(wire);
+        RdmaMsgRx rx = (RdmaMsgRx) channel.readInbound();
+        assertNotNull(rx);
+        assertHeader(rx, 0x1000, data.length, 3, MessageTypes.WRITE_REQ, 0, 9);
+        assertFalse(rx.hasRxPayload());
+        assertEquals(Arrays.asList(0, 100, 4100), positions);
+        byte[] got = new byte[data.length];
+        placed.getBytes(0, got);
+        assertTrue(Arrays.equals(data, got));
+        rx.recycle();
+        channel.finish();
+    }
+}